@@ -0,0 +1,646 @@
+import java.util.*;
+
+import tester.*;
+
+// propagates power a whole word of tiles at a time. the board is kept as
+// bitsets with one bit per tile, 64 tiles to a long, each row padded to whole
+// words so that the tile below a bit is always the same bit one row of words
+// later. two bitsets say which tiles are connected to the tile on their right
+// and to the tile below them, and a breadth first search then expands the
+// frontier a layer at a time with shifts and masks over just the words it is
+// in. every tile found in a layer is at that layer's distance from a station.
+// a frontier with only a tile or so in each word (the thin paths of a maze, or
+// the diagonal edges of a diamond spreading out from a station) gains nothing
+// from whole word operations, so layers that sparse are expanded one tile at
+// a time instead. that is most layers on most boards, so finding distances
+// this way is slower than the game's scalar search, and the game doesn't use
+// it for its power updates. finding just which tiles are powered needs no
+// layers, though, and reach does that many times faster on boards that are
+// mostly powered, so the game can keep its wiring here as well and check for
+// a win with reach while its power fields are behind
+class BitboardPower {
+  // a layer is expanded a word at a time if it has at least this many tiles
+  // for every word it touches
+  static final int DENSE_TILES_PER_WORD = 2;
+  // reach sweeps the board while each sweep finds at least one tile for
+  // every this many words of it
+  static final int SPARSE_WORDS_PER_TILE = 8;
+
+  int width;
+  int height;
+  int wordsPerRow;
+  // the tiles connected to the tile to their right, and to the tile below them
+  long[] right;
+  long[] down;
+  // the tiles reached so far, and the current and next frontier as bitsets,
+  // which are zero outside of the words listed for them
+  long[] visited;
+  long[] frontier;
+  long[] next;
+  int[] words;
+  int wordCount;
+  int[] nextWords;
+  int nextCount;
+  // how many layers were expanded each way by the last propagation
+  int denseLayers;
+  int sparseLayers;
+  // how many sweeps reach has made
+  int sweeps;
+  // the station tiles of the last game checked by powersAll
+  int[] sources;
+
+  BitboardPower(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.wordsPerRow = (width + 63) / 64;
+    int size = wordsPerRow * height;
+    this.right = new long[size];
+    this.down = new long[size];
+    this.visited = new long[size];
+    this.frontier = new long[size];
+    this.next = new long[size];
+    this.words = new int[size];
+    this.nextWords = new int[size];
+  }
+
+  // the word holding the bit of the tile at the given index
+  int word(int index) {
+    return index / width * wordsPerRow + index % width / 64;
+  }
+
+  // the bit of the tile at the given index within its word
+  static long bit(int index, int width) {
+    return 1L << (index % width % 64);
+  }
+
+  // build the connection bitsets from the given wires, in row-major order
+  void load(byte[] masks) {
+    Arrays.fill(right, 0);
+    Arrays.fill(down, 0);
+    for (int row = 0; row < height; row++) {
+      for (int col = 0; col < width; col++) {
+        int index = row * width + col;
+        int k = row * wordsPerRow + col / 64;
+        int mask = masks[index];
+        if (col + 1 < width && (mask & (1 << GamePiece.RIGHT)) != 0
+            && (masks[index + 1] & (1 << GamePiece.LEFT)) != 0) {
+          right[k] |= 1L << (col & 63);
+        }
+        if (row + 1 < height && (mask & (1 << GamePiece.BOTTOM)) != 0
+            && (masks[index + width] & (1 << GamePiece.TOP)) != 0) {
+          down[k] |= 1L << (col & 63);
+        }
+      }
+    }
+  }
+
+  // build the connection bitsets from the wires of the given game's tiles
+  void load(LightEmAll game) {
+    for (int index = 0; index < width * height; index++) {
+      link(game, index);
+    }
+  }
+
+  // update the connections of the tile at the given index, whose wires changed,
+  // to all four of its neighbors
+  void rewire(LightEmAll game, int index) {
+    link(game, index);
+    if (index % width != 0) {
+      link(game, index - 1);
+    }
+    if (width <= index) {
+      link(game, index - width);
+    }
+  }
+
+  // set whether the tile at the given index of the given game is connected
+  // to the tile on its right and to the tile below it
+  void link(LightEmAll game, int index) {
+    GamePiece tile = game.nodes.get(index);
+    int k = word(index);
+    long bit = bit(index, width);
+    if (game.connectedIndex(tile, GamePiece.RIGHT) != -1) {
+      right[k] |= bit;
+    }
+    else {
+      right[k] &= ~bit;
+    }
+    if (game.connectedIndex(tile, GamePiece.BOTTOM) != -1) {
+      down[k] |= bit;
+    }
+    else {
+      down[k] &= ~bit;
+    }
+  }
+
+  // do the stations of the given game reach every tile along the wires last loaded?
+  boolean powersAll(LightEmAll game) {
+    int count = game.stations.size();
+    if (sources == null || sources.length < count) {
+      sources = new int[count];
+    }
+    for (int s = 0; s < count; s++) {
+      sources[s] = game.indexOf(game.stations.get(s));
+    }
+    return reach(sources, count) == width * height;
+  }
+
+  // is the tile at the given index connected to its neighbor in the given direction?
+  boolean connected(int index, int dir) {
+    if (dir == GamePiece.RIGHT) {
+      return (right[word(index)] & bit(index, width)) != 0;
+    }
+    else if (dir == GamePiece.LEFT) {
+      return index % width != 0 && (right[word(index - 1)] & bit(index - 1, width)) != 0;
+    }
+    else if (dir == GamePiece.BOTTOM) {
+      return (down[word(index)] & bit(index, width)) != 0;
+    }
+    return width <= index && (down[word(index - width)] & bit(index - width, width)) != 0;
+  }
+
+  // the index of the neighbor of the tile at the given index in the given direction
+  int neighbor(int index, int dir) {
+    if (dir == GamePiece.RIGHT) {
+      return index + 1;
+    }
+    else if (dir == GamePiece.LEFT) {
+      return index - 1;
+    }
+    else if (dir == GamePiece.BOTTOM) {
+      return index + width;
+    }
+    return index - width;
+  }
+
+  // fill in the distance from every tile to the nearest of the first count
+  // station tiles (-1 if unreachable) and which station that is (ties go to
+  // any of the nearest), along the wires last loaded. returns how many tiles
+  // were reached
+  int propagate(int[] stations, int count, int[] dist, int[] nearest) {
+    Arrays.fill(visited, 0);
+    Arrays.fill(dist, -1);
+    Arrays.fill(nearest, -1);
+    denseLayers = 0;
+    sparseLayers = 0;
+    nextCount = 0;
+    for (int s = 0; s < count; s++) {
+      int index = stations[s];
+      if (dist[index] == -1) {
+        dist[index] = 0;
+        nearest[index] = s;
+        push(word(index), bit(index, width));
+      }
+    }
+    int reached = 0;
+    for (int depth = 0; 0 < nextCount; depth++) {
+      int tiles = settle(depth, dist, nearest, count);
+      reached += tiles;
+      if (wordCount * DENSE_TILES_PER_WORD <= tiles) {
+        expandDense();
+        denseLayers += 1;
+      }
+      else {
+        expandSparse();
+        sparseLayers += 1;
+      }
+    }
+    advance();
+    return reached;
+  }
+
+  // make the tiles found for the next layer the frontier, at the given
+  // distance, returning how many there are
+  int settle(int depth, int[] dist, int[] nearest, int count) {
+    advance();
+    int tiles = 0;
+    for (int i = 0; i < wordCount; i++) {
+      int k = words[i];
+      long found = frontier[k];
+      visited[k] |= found;
+      int base = k / wordsPerRow * width + k % wordsPerRow * 64;
+      while (found != 0) {
+        int index = base + Long.numberOfTrailingZeros(found);
+        found &= found - 1;
+        tiles += 1;
+        if (0 < depth) {
+          dist[index] = depth;
+          nearest[index] = count == 1 ? 0 : nearestOfParent(index, depth, dist, nearest);
+        }
+      }
+    }
+    return tiles;
+  }
+
+  // make the next layer the frontier, clearing the words of the old one,
+  // so that both bitsets are zero outside of their lists of words
+  void advance() {
+    for (int i = 0; i < wordCount; i++) {
+      frontier[words[i]] = 0;
+    }
+    long[] swapBits = frontier;
+    frontier = next;
+    next = swapBits;
+    int[] swapWords = words;
+    words = nextWords;
+    nextWords = swapWords;
+    wordCount = nextCount;
+    nextCount = 0;
+  }
+
+  // add the given bits of the given word to the next layer, unless visited
+  void push(int k, long bits) {
+    bits &= ~visited[k];
+    if (bits != 0) {
+      if (next[k] == 0) {
+        nextWords[nextCount++] = k;
+      }
+      next[k] |= bits;
+    }
+  }
+
+  // find the next layer a word of the frontier at a time
+  void expandDense() {
+    for (int i = 0; i < wordCount; i++) {
+      int k = words[i];
+      int w = k % wordsPerRow;
+      long here = frontier[k];
+      long east = here & right[k];
+      // to the right and to the left within the word
+      push(k, (east << 1) | ((here >>> 1) & right[k]));
+      // and across into the words on either side
+      if (east < 0 && w + 1 < wordsPerRow) {
+        push(k + 1, 1L);
+      }
+      if ((here & 1) != 0 && 0 < w && right[k - 1] < 0) {
+        push(k - 1, 1L << 63);
+      }
+      if (k + wordsPerRow < down.length) {
+        push(k + wordsPerRow, here & down[k]);
+      }
+      if (wordsPerRow <= k) {
+        push(k - wordsPerRow, here & down[k - wordsPerRow]);
+      }
+    }
+  }
+
+  // find the next layer a tile of the frontier at a time
+  void expandSparse() {
+    for (int i = 0; i < wordCount; i++) {
+      int k = words[i];
+      int w = k % wordsPerRow;
+      long here = frontier[k];
+      while (here != 0) {
+        int b = Long.numberOfTrailingZeros(here);
+        long tile = here & -here;
+        here &= here - 1;
+        if ((right[k] & tile) != 0) {
+          if (b < 63) {
+            push(k, tile << 1);
+          }
+          else {
+            push(k + 1, 1L);
+          }
+        }
+        if (0 < b) {
+          if ((right[k] & (tile >>> 1)) != 0) {
+            push(k, tile >>> 1);
+          }
+        }
+        else if (0 < w && right[k - 1] < 0) {
+          push(k - 1, 1L << 63);
+        }
+        if ((down[k] & tile) != 0) {
+          push(k + wordsPerRow, tile);
+        }
+        if (wordsPerRow <= k && (down[k - wordsPerRow] & tile) != 0) {
+          push(k - wordsPerRow, tile);
+        }
+      }
+    }
+  }
+
+  // find just which tiles the first count station tiles reach, into visited,
+  // without their distances. this sweeps down the board and back up again,
+  // spreading the reached tiles along each row and then into the next one,
+  // until a sweep finds nothing new. an open board is done in a sweep or two,
+  // a word at a time, but the winding paths of a maze only gain a few tiles
+  // per sweep, so once a sweep finds less than a tile for every few words the
+  // rest is found one tile at a time. returns how many tiles were reached
+  int reach(int[] stations, int count) {
+    Arrays.fill(visited, 0);
+    for (int s = 0; s < count; s++) {
+      visited[word(stations[s])] |= bit(stations[s], width);
+    }
+    int reached = 0;
+    for (long word : visited) {
+      reached += Long.bitCount(word);
+    }
+    int found;
+    do {
+      sweeps += 1;
+      for (int row = 0; row < height; row++) {
+        if (0 < row) {
+          spreadDown(row - 1);
+        }
+        spreadAlong(row);
+      }
+      for (int row = height - 1; 0 <= row; row--) {
+        if (row < height - 1) {
+          spreadUp(row + 1);
+        }
+        spreadAlong(row);
+      }
+      int total = 0;
+      for (long word : visited) {
+        total += Long.bitCount(word);
+      }
+      found = total - reached;
+      reached = total;
+    } while (visited.length <= found * SPARSE_WORDS_PER_TILE);
+    return reached + finishReach();
+  }
+
+  // spread the reached tiles of the given row to the row below
+  void spreadDown(int row) {
+    for (int k = row * wordsPerRow; k < (row + 1) * wordsPerRow; k++) {
+      visited[k + wordsPerRow] |= visited[k] & down[k];
+    }
+  }
+
+  // spread the reached tiles of the given row to the row above
+  void spreadUp(int row) {
+    for (int k = row * wordsPerRow; k < (row + 1) * wordsPerRow; k++) {
+      visited[k - wordsPerRow] |= visited[k] & down[k - wordsPerRow];
+    }
+  }
+
+  // spread the reached tiles of the given row as far as they go along it,
+  // doubling the distance covered in each word with every step
+  void spreadAlong(int row) {
+    int first = row * wordsPerRow;
+    int last = first + wordsPerRow - 1;
+    for (int k = first; k <= last; k++) {
+      long x = visited[k];
+      if (first < k && visited[k - 1] < 0 && right[k - 1] < 0) {
+        x |= 1;
+      }
+      // the bits that can be entered from the bit on their right
+      long enter = right[k] << 1;
+      x |= enter & (x << 1);
+      enter &= enter << 1;
+      x |= enter & (x << 2);
+      enter &= enter << 2;
+      x |= enter & (x << 4);
+      enter &= enter << 4;
+      x |= enter & (x << 8);
+      enter &= enter << 8;
+      x |= enter & (x << 16);
+      enter &= enter << 16;
+      x |= enter & (x << 32);
+      visited[k] = x;
+    }
+    for (int k = last; first <= k; k--) {
+      long x = visited[k];
+      if (k < last && (visited[k + 1] & 1) != 0 && right[k] < 0) {
+        x |= 1L << 63;
+      }
+      // the bits that can be entered from the bit on their left
+      long enter = right[k];
+      x |= enter & (x >>> 1);
+      enter &= enter >>> 1;
+      x |= enter & (x >>> 2);
+      enter &= enter >>> 2;
+      x |= enter & (x >>> 4);
+      enter &= enter >>> 4;
+      x |= enter & (x >>> 8);
+      enter &= enter >>> 8;
+      x |= enter & (x >>> 16);
+      enter &= enter >>> 16;
+      x |= enter & (x >>> 32);
+      visited[k] = x;
+    }
+  }
+
+  // find the rest of the tiles connected to the reached ones: the ones next
+  // to them a word at a time, and the rest a tile at a time. returns how
+  // many there are
+  int finishReach() {
+    nextCount = 0;
+    wordCount = 0;
+    for (int k = 0; k < visited.length; k++) {
+      if (visited[k] != 0) {
+        frontier[k] = visited[k];
+        words[wordCount++] = k;
+      }
+    }
+    expandDense();
+    int reached = 0;
+    while (0 < nextCount) {
+      advance();
+      for (int i = 0; i < wordCount; i++) {
+        visited[words[i]] |= frontier[words[i]];
+        reached += Long.bitCount(frontier[words[i]]);
+      }
+      expandSparse();
+    }
+    advance();
+    return reached;
+  }
+
+  // the station of any tile of the last layer that the given tile is connected to
+  int nearestOfParent(int index, int depth, int[] dist, int[] nearest) {
+    for (int dir = 0; dir < 4; dir++) {
+      if (connected(index, dir)) {
+        int from = neighbor(index, dir);
+        if (dist[from] == depth - 1) {
+          return nearest[from];
+        }
+      }
+    }
+    throw new IllegalStateException("Tile " + index + " was reached from nowhere");
+  }
+
+  // usage: BitboardPower [size] [rounds]
+  // floods size x size boards from a station in the middle with a scalar
+  // breadth first search and with bitsets, both for distances and for just
+  // the powered tiles, and reports the best time of each
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int tiles = size * size;
+    int[] stations = {size / 2 * size + size / 2};
+    int[] dist = new int[tiles];
+    int[] expected = new int[tiles];
+    int[] nearest = new int[tiles];
+    int[] queue = new int[tiles];
+    BitboardPower engine = new BitboardPower(size, size);
+    Random rand = new Random(1);
+    TileSource maze = new GeneratedTileSource(size, size, 1, true);
+    String[] names = {"all crosses", "3/4 crosses", "maze"};
+    for (int board = 0; board < 3; board++) {
+      byte[] masks = new byte[tiles];
+      for (int index = 0; index < tiles; index++) {
+        masks[index] = (byte) (board == 0 ? 15
+            : board == 1 ? (rand.nextInt(4) == 0 ? rand.nextInt(16) : 15)
+            : maze.mask(index / size, index % size));
+      }
+      long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+      int reached = 0;
+      for (int round = 0; round < rounds; round++) {
+        long start = System.nanoTime();
+        reached = BoardLayout.floodRowMajor(size, masks, stations, 1, expected, queue);
+        long loaded = System.nanoTime();
+        engine.load(masks);
+        long propagated = System.nanoTime();
+        engine.propagate(stations, 1, dist, nearest);
+        long reaching = System.nanoTime();
+        if (engine.reach(stations, 1) != reached) {
+          throw new IllegalStateException("The bitboard reached a different number of tiles");
+        }
+        long end = System.nanoTime();
+        best[0] = Math.min(best[0], loaded - start);
+        best[1] = Math.min(best[1], propagated - loaded);
+        best[2] = Math.min(best[2], reaching - propagated);
+        best[3] = Math.min(best[3], end - reaching);
+      }
+      if (!Arrays.equals(dist, expected)) {
+        throw new IllegalStateException("The bitboard found different distances");
+      }
+      System.out.printf("%-11s %5.1f%% powered: scalar %6.1f ms, loading bitsets %6.1f ms,"
+          + " distances %6.1f ms (%d dense, %d sparse layers), powered only %6.1f ms"
+          + " (%d sweeps)%n", names[board], 100.0 * reached / tiles, best[0] / 1e6,
+          best[1] / 1e6, best[2] / 1e6, engine.denseLayers, engine.sparseLayers,
+          best[3] / 1e6, engine.sweeps / rounds);
+      engine.sweeps = 0;
+    }
+  }
+}
+
+// examples for propagating power with bitboards
+class ExamplesBitboardPower {
+  // tests distances and stations on a board wider than a word,
+  // with loops, against the game's own breadth first search
+  void testPropagate(Tester t) {
+    Random rand = new Random(6);
+    for (int round = 0; round < 20; round++) {
+      int width = 1 + rand.nextInt(150);
+      int height = 1 + rand.nextInt(12);
+      LightEmAll game = new LightEmAll(width, height, Math.min(width * height, 4), rand);
+      // mostly crosses, so some layers are dense
+      for (GamePiece tile : game.nodes) {
+        tile.setMask(rand.nextInt(3) == 0 ? rand.nextInt(16) : 15);
+      }
+      game.updatePower();
+      byte[] masks = new byte[game.nodes.size()];
+      for (int index = 0; index < masks.length; index++) {
+        masks[index] = (byte) game.nodes.get(index).mask();
+      }
+      int[] stations = ChangeFeed.stationTiles(game);
+      int[] dist = new int[masks.length];
+      int[] nearest = new int[masks.length];
+      BitboardPower engine = new BitboardPower(width, height);
+      engine.load(masks);
+      int reached = engine.propagate(stations, stations.length, dist, nearest);
+      t.checkExpect(dist, game.stationDist);
+      int[] claimed = new int[stations.length];
+      boolean closest = true;
+      for (int index = 0; index < dist.length; index++) {
+        if (dist[index] != -1) {
+          claimed[nearest[index]] += 1;
+          // ties may go to any of the nearest stations
+          closest &= game.bfs(game.nodes.get(index), game.stations.get(nearest[index]))
+              == dist[index];
+        }
+      }
+      t.checkExpect(closest, true);
+      t.checkExpect(Arrays.stream(claimed).sum(), reached);
+      t.checkExpect(reached, Arrays.stream(game.coverage).sum());
+    }
+  }
+
+  // tests that layers are expanded a word at a time when the frontier is
+  // wide, and one tile at a time when it isn't
+  void testDenseAndSparse(Tester t) {
+    BitboardPower engine = new BitboardPower(100, 100);
+    byte[] masks = new byte[10000];
+    Arrays.fill(masks, (byte) 15);
+    int[] dist = new int[10000];
+    int[] nearest = new int[10000];
+    t.checkExpect(engine.propagate(new int[] {5050}, 1, dist, nearest), 1);
+    engine.load(masks);
+    // a diamond spreading from the middle has a tile or two in each word
+    t.checkExpect(engine.propagate(new int[] {5050}, 1, dist, nearest), 10000);
+    t.checkExpect(dist[0], 100);
+    t.checkExpect(dist[9999], 98);
+    t.checkExpect(engine.denseLayers, 0);
+
+    // a station on every tile of the top row spreads down a row at a time
+    int[] top = new int[100];
+    for (int col = 0; col < 100; col++) {
+      top[col] = col;
+    }
+    t.checkExpect(engine.propagate(top, 100, dist, nearest), 10000);
+    t.checkExpect(dist[9999], 99);
+    t.checkExpect(nearest[9999], 99);
+    t.checkExpect(engine.sparseLayers, 0);
+  }
+
+  // tests finding just the powered tiles
+  void testReach(Tester t) {
+    Random rand = new Random(8);
+    boolean same = true;
+    for (int round = 0; round < 50; round++) {
+      int width = 1 + rand.nextInt(200);
+      int height = 2 + rand.nextInt(30);
+      byte[] masks = new byte[width * height];
+      int crosses = rand.nextInt(5);
+      for (int index = 0; index < masks.length; index++) {
+        masks[index] = (byte) (rand.nextInt(4) < crosses ? 15 : rand.nextInt(16));
+      }
+      int[] stations = {0, rand.nextInt(masks.length)};
+      stations[0] = (stations[1] + 1) % masks.length;
+      int[] dist = new int[masks.length];
+      int reached = BoardLayout.floodRowMajor(width, masks, stations, 2, dist,
+          new int[masks.length]);
+      BitboardPower engine = new BitboardPower(width, height);
+      engine.load(masks);
+      same &= engine.reach(stations, 2) == reached;
+      for (int index = 0; index < masks.length; index++) {
+        same &= (dist[index] != -1)
+            == ((engine.visited[engine.word(index)] & BitboardPower.bit(index, width)) != 0);
+      }
+    }
+    t.checkExpect(same, true);
+  }
+
+  // tests that the game's win check sees a solved board before its power
+  // fields do, and sees a tile turned out of place right away
+  void testWinCheck(Tester t) {
+    TileSource source = new GeneratedTileSource(70, 5, 1, true);
+    int[] masks = new int[350];
+    for (int index = 0; index < 350; index++) {
+      masks[index] = source.mask(index / 70, index % 70);
+    }
+    LightEmAll game = new LightEmAll(70, 5, masks, new int[] {0}, 0, 70, 0);
+    t.checkExpect(game.allPowered(), false);
+    game.useBitboardPower();
+    t.checkExpect(game.allPowered(), true);
+    game.useWavefront(10);
+    game.onTick();
+    t.checkExpect(game.wave.animating(), true);
+    t.checkExpect(game.allPowered(), true);
+    int turned = 0;
+    while (masks[turned] == 15) {
+      turned += 1;
+    }
+    game.input.rotate(turned);
+    game.onTick();
+    t.checkExpect(game.allPowered(), false);
+    game.input.rotate(turned);
+    game.input.rotate(turned);
+    game.input.rotate(turned);
+    game.onTick();
+    t.checkExpect(game.allPowered(), true);
+  }
+}
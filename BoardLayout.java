@@ -0,0 +1,323 @@
+import java.util.*;
+
+import tester.*;
+
+// the order the tiles of a board are stored in, for traversals over packed
+// arrays of a board's wires. row-major order puts the tiles above and below a
+// tile a whole row away, so on a wide board every vertical step of a flood is
+// likely a cache miss. storing the tiles in small square blocks, or along a
+// Hilbert curve, keeps most neighbors close by. the neighbors of every tile are
+// worked out up front, so a traversal reads them from a table and never needs
+// to know which order is in use
+//
+// tiles are numbered by their row-major index, as everywhere else, and stored
+// at a slot. a layout maps between the two, and each slot's four neighbors are
+// at neighbors[slot * 4 + dir] (-1 off the edge of the board). LightEmAll keeps
+// its tiles in row-major order, where slots are tile indices, and its power
+// floods and searches look their neighbors up in a row-major table
+class BoardLayout {
+  String name;
+  int width;
+  int height;
+  int[] slotOf;
+  int[] tileAt;
+  int[] neighbors;
+
+  // a layout storing the tiles in the given order of row-major indices
+  BoardLayout(String name, int width, int height, int[] tileAt) {
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    this.tileAt = tileAt;
+    this.slotOf = new int[tileAt.length];
+    for (int slot = 0; slot < tileAt.length; slot++) {
+      slotOf[tileAt[slot]] = slot;
+    }
+    this.neighbors = new int[tileAt.length * 4];
+    for (int slot = 0; slot < tileAt.length; slot++) {
+      int row = tileAt[slot] / width;
+      int col = tileAt[slot] % width;
+      neighbors[slot * 4 + GamePiece.TOP] = row == 0 ? -1 : slotOf[tileAt[slot] - width];
+      neighbors[slot * 4 + GamePiece.BOTTOM] = row == height - 1 ? -1
+          : slotOf[tileAt[slot] + width];
+      neighbors[slot * 4 + GamePiece.LEFT] = col == 0 ? -1 : slotOf[tileAt[slot] - 1];
+      neighbors[slot * 4 + GamePiece.RIGHT] = col == width - 1 ? -1
+          : slotOf[tileAt[slot] + 1];
+    }
+  }
+
+  // the tiles in row-major order
+  static BoardLayout rowMajor(int width, int height) {
+    int[] tileAt = new int[width * height];
+    for (int index = 0; index < tileAt.length; index++) {
+      tileAt[index] = index;
+    }
+    return new BoardLayout("row-major", width, height, tileAt);
+  }
+
+  // the tiles in square blocks of the given size, with the blocks and the
+  // tiles in each one in row-major order (blocks on the far edges are cut short)
+  static BoardLayout blocked(int width, int height, int block) {
+    int[] tileAt = new int[width * height];
+    int slot = 0;
+    for (int top = 0; top < height; top += block) {
+      for (int left = 0; left < width; left += block) {
+        for (int row = top; row < Math.min(height, top + block); row++) {
+          for (int col = left; col < Math.min(width, left + block); col++) {
+            tileAt[slot++] = row * width + col;
+          }
+        }
+      }
+    }
+    return new BoardLayout("blocked " + block, width, height, tileAt);
+  }
+
+  // the tiles in the order a Hilbert curve over the smallest power of two
+  // square that covers the board visits them
+  static BoardLayout hilbert(int width, int height) {
+    int side = 1;
+    while (side < width || side < height) {
+      side *= 2;
+    }
+    int[] tileAt = new int[width * height];
+    int slot = 0;
+    for (long d = 0; d < (long) side * side; d++) {
+      int index = hilbertTile(side, d);
+      int row = index / side;
+      int col = index % side;
+      if (row < height && col < width) {
+        tileAt[slot++] = row * width + col;
+      }
+    }
+    return new BoardLayout("hilbert", width, height, tileAt);
+  }
+
+  // the row * side + col of the point at the given distance
+  // along a Hilbert curve over a square of the given side
+  static int hilbertTile(int side, long d) {
+    int x = 0;
+    int y = 0;
+    for (int s = 1; s < side; s *= 2) {
+      int rx = (int) (1 & (d / 2));
+      int ry = (int) (1 & (d ^ rx));
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        int swap = x;
+        x = y;
+        y = swap;
+      }
+      x += s * rx;
+      y += s * ry;
+      d /= 4;
+    }
+    return y * side + x;
+  }
+
+  // the wires of the given board, by slot
+  byte[] pack(TileSource source) {
+    byte[] masks = new byte[tileAt.length];
+    for (int slot = 0; slot < masks.length; slot++) {
+      masks[slot] = (byte) source.mask(tileAt[slot] / width, tileAt[slot] % width);
+    }
+    return masks;
+  }
+
+  // the given values by slot, in row-major order instead
+  int[] toRowMajor(int[] bySlot) {
+    int[] byTile = new int[bySlot.length];
+    for (int slot = 0; slot < bySlot.length; slot++) {
+      byTile[tileAt[slot]] = bySlot[slot];
+    }
+    return byTile;
+  }
+
+  // the distance from every slot to the nearest of the first count source
+  // slots along the given wires (-1 if unreachable), by breadth first search.
+  // returns how many slots were reached
+  int flood(byte[] masks, int[] sources, int count, int[] dist, int[] queue) {
+    Arrays.fill(dist, -1);
+    int head = 0;
+    int tail = 0;
+    for (int i = 0; i < count; i++) {
+      dist[sources[i]] = 0;
+      queue[tail++] = sources[i];
+    }
+    while (head < tail) {
+      int slot = queue[head++];
+      int mask = masks[slot];
+      for (int dir = 0; dir < 4; dir++) {
+        if ((mask & (1 << dir)) != 0) {
+          int next = neighbors[slot * 4 + dir];
+          if (next != -1 && dist[next] == -1
+              && (masks[next] & (1 << GamePiece.opposite(dir))) != 0) {
+            dist[next] = dist[slot] + 1;
+            queue[tail++] = next;
+          }
+        }
+      }
+    }
+    return tail;
+  }
+
+  // the same flood over row-major wires, working out neighbors from the
+  // row and column of each tile instead of reading them from a table,
+  // for comparison
+  static int floodRowMajor(int width, byte[] masks, int[] sources, int count, int[] dist,
+      int[] queue) {
+    Arrays.fill(dist, -1);
+    int height = masks.length / width;
+    int head = 0;
+    int tail = 0;
+    for (int i = 0; i < count; i++) {
+      dist[sources[i]] = 0;
+      queue[tail++] = sources[i];
+    }
+    while (head < tail) {
+      int index = queue[head++];
+      int row = index / width;
+      int col = index % width;
+      int mask = masks[index];
+      for (int dir = 0; dir < 4; dir++) {
+        if ((mask & (1 << dir)) != 0) {
+          int next = -1;
+          if (dir == GamePiece.TOP && 0 < row) {
+            next = index - width;
+          }
+          else if (dir == GamePiece.BOTTOM && row < height - 1) {
+            next = index + width;
+          }
+          else if (dir == GamePiece.LEFT && 0 < col) {
+            next = index - 1;
+          }
+          else if (dir == GamePiece.RIGHT && col < width - 1) {
+            next = index + 1;
+          }
+          if (next != -1 && dist[next] == -1
+              && (masks[next] & (1 << GamePiece.opposite(dir))) != 0) {
+            dist[next] = dist[index] + 1;
+            queue[tail++] = next;
+          }
+        }
+      }
+    }
+    return tail;
+  }
+
+  // usage: BoardLayout [size] [rounds]
+  // floods a generated size x size board from a station in each corner and
+  // the middle, with every layout, and reports the throughput of each
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    TileSource source = new GeneratedTileSource(size, size, 1, true);
+    int tiles = size * size;
+    int[] stations = {0, size - 1, tiles - size, tiles - 1, size / 2 * size + size / 2};
+    int[] dist = new int[tiles];
+    int[] queue = new int[tiles];
+    int[] expected = null;
+
+    BoardLayout rowMajor = rowMajor(size, size);
+    byte[] masks = rowMajor.pack(source);
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      floodRowMajor(size, masks, stations, stations.length, dist, queue);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    expected = dist.clone();
+    report("row-major, no table", tiles, best);
+    rowMajor = null;
+    masks = null;
+
+    for (int layout = 0; layout < 4; layout++) {
+      BoardLayout order = layout == 0 ? rowMajor(size, size)
+          : layout == 1 ? blocked(size, size, 8)
+          : layout == 2 ? blocked(size, size, 32) : hilbert(size, size);
+      masks = order.pack(source);
+      int[] sources = new int[stations.length];
+      for (int i = 0; i < stations.length; i++) {
+        sources[i] = order.slotOf[stations[i]];
+      }
+      best = Long.MAX_VALUE;
+      for (int round = 0; round < rounds; round++) {
+        long start = System.nanoTime();
+        order.flood(masks, sources, sources.length, dist, queue);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      if (!Arrays.equals(order.toRowMajor(dist), expected)) {
+        throw new IllegalStateException(order.name + " found different distances");
+      }
+      report(order.name, tiles, best);
+    }
+  }
+
+  // print the throughput of a flood over the given number of tiles
+  static void report(String name, int tiles, long nanos) {
+    System.out.printf("%-20s %8.1f ms %8.1f Mtiles/s%n", name, nanos / 1e6,
+        tiles / (nanos / 1e3));
+  }
+}
+
+// examples for board layouts
+class ExamplesBoardLayout {
+  // tests that every layout stores each tile exactly once, next to the
+  // right neighbors
+  void testLayouts(Tester t) {
+    BoardLayout[] layouts = {BoardLayout.rowMajor(7, 5), BoardLayout.blocked(7, 5, 3),
+        BoardLayout.hilbert(7, 5)};
+    for (BoardLayout layout : layouts) {
+      boolean[] seen = new boolean[35];
+      for (int slot = 0; slot < 35; slot++) {
+        seen[layout.tileAt[slot]] = true;
+      }
+      t.checkExpect(seen, new boolean[] {true, true, true, true, true, true, true, true, true,
+          true, true, true, true, true, true, true, true, true, true, true, true, true, true,
+          true, true, true, true, true, true, true, true, true, true, true, true});
+      // the tile in row 2, column 3 and its neighbors
+      int slot = layout.slotOf[2 * 7 + 3];
+      t.checkExpect(layout.tileAt[layout.neighbors[slot * 4 + GamePiece.TOP]], 1 * 7 + 3);
+      t.checkExpect(layout.tileAt[layout.neighbors[slot * 4 + GamePiece.BOTTOM]], 3 * 7 + 3);
+      t.checkExpect(layout.tileAt[layout.neighbors[slot * 4 + GamePiece.LEFT]], 2 * 7 + 2);
+      t.checkExpect(layout.tileAt[layout.neighbors[slot * 4 + GamePiece.RIGHT]], 2 * 7 + 4);
+      int corner = layout.slotOf[4 * 7 + 6];
+      t.checkExpect(layout.neighbors[corner * 4 + GamePiece.BOTTOM], -1);
+      t.checkExpect(layout.neighbors[corner * 4 + GamePiece.RIGHT], -1);
+    }
+    // the blocks of a blocked layout are stored one after another
+    t.checkExpect(Arrays.copyOf(BoardLayout.blocked(7, 5, 3).tileAt, 10),
+        new int[] {0, 1, 2, 7, 8, 9, 14, 15, 16, 3});
+    // a Hilbert curve only ever steps to a neighbor
+    t.checkExpect(Arrays.copyOf(BoardLayout.hilbert(4, 4).tileAt, 6),
+        new int[] {0, 1, 5, 4, 8, 12});
+  }
+
+  // tests that a flood finds the same distances as the game with every layout
+  void testFlood(Tester t) {
+    LightEmAll game = new LightEmAll(9, 7, 3, new Random(4));
+    for (GamePiece tile : game.nodes) {
+      tile.rotateRandom();
+    }
+    game.updatePower();
+    TileSource source = new GameTileSource(game);
+    int[] stations = ChangeFeed.stationTiles(game);
+    BoardLayout[] layouts = {BoardLayout.rowMajor(9, 7), BoardLayout.blocked(9, 7, 4),
+        BoardLayout.hilbert(9, 7)};
+    for (BoardLayout layout : layouts) {
+      int[] sources = new int[3];
+      for (int s = 0; s < 3; s++) {
+        sources[s] = layout.slotOf[stations[s]];
+      }
+      int[] dist = new int[63];
+      int reached = layout.flood(layout.pack(source), sources, 3, dist, new int[63]);
+      t.checkExpect(layout.toRowMajor(dist), game.stationDist);
+      t.checkExpect(reached, game.coverage[0] + game.coverage[1] + game.coverage[2]);
+    }
+    int[] dist = new int[63];
+    BoardLayout.floodRowMajor(9, BoardLayout.rowMajor(9, 7).pack(source), stations, 3, dist,
+        new int[63]);
+    t.checkExpect(dist, game.stationDist);
+  }
+}
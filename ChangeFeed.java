@@ -0,0 +1,549 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// one encoded batch of changes to a board, shared by every subscriber that
+// hasn't read it yet and returned to the pool once the last one has.
+// a delta with a keyframe instead of a buffer tells a subscriber that fell
+// too far behind to start over from that keyframe
+class FeedDelta {
+  long seq;
+  ByteBuffer buffer;
+  AtomicInteger refs;
+  ChangeFeed feed;
+  BoardSnapshot keyframe;
+
+  FeedDelta(long seq, ByteBuffer buffer, ChangeFeed feed) {
+    this.seq = seq;
+    this.buffer = buffer;
+    this.refs = new AtomicInteger(1);
+    this.feed = feed;
+  }
+
+  // a delta telling its subscriber to start over from the given keyframe
+  FeedDelta(BoardSnapshot keyframe) {
+    this(keyframe.version, null, null);
+    this.keyframe = keyframe;
+  }
+
+  // take another reference to this delta
+  void retain() {
+    refs.incrementAndGet();
+  }
+
+  // drop a reference to this delta, recycling its buffer after the last one
+  void release() {
+    if (refs.decrementAndGet() == 0 && feed != null) {
+      feed.recycle(buffer);
+      buffer = null;
+    }
+  }
+}
+
+// a spectator's view of a feed: the snapshot it starts from and the deltas
+// published since, in order. a spectator that stops reading is dropped back to
+// the feed's keyframe once its deltas add up to more than that costs to send,
+// so it can't hold on to pooled buffers forever. the deltas are guarded by this
+class FeedSubscription {
+  ChangeFeed feed;
+  BoardSnapshot start;
+  ArrayDeque<FeedDelta> deltas;
+  // the encoded size of the deltas waiting
+  int pendingBytes;
+
+  FeedSubscription(ChangeFeed feed, BoardSnapshot start) {
+    this.feed = feed;
+    this.start = start;
+    this.deltas = new ArrayDeque<>();
+  }
+
+  // queue the given delta, whose reference now belongs to this subscription
+  synchronized void add(FeedDelta delta) {
+    deltas.add(delta);
+    if (delta.buffer != null) {
+      pendingBytes += delta.buffer.limit();
+    }
+  }
+
+  // take the next delta off the queue, or null if there is none
+  synchronized FeedDelta next() {
+    FeedDelta delta = deltas.poll();
+    if (delta != null && delta.buffer != null) {
+      pendingBytes -= delta.buffer.limit();
+    }
+    return delta;
+  }
+
+  // give back every delta not read yet, and start over from the given keyframe
+  // followed by the given deltas published since
+  synchronized void restart(BoardSnapshot keyframe, ArrayList<FeedDelta> log) {
+    releaseAll();
+    add(new FeedDelta(keyframe));
+    for (FeedDelta delta : log) {
+      delta.retain();
+      add(delta);
+    }
+  }
+
+  // hand the next delta to the given reader as a read-only view of the shared
+  // buffer, which is only valid until the reader returns, or the keyframe to
+  // start over from to the given restart. returns whether there was anything
+  boolean poll(Consumer<BoardSnapshot> restart, Consumer<ByteBuffer> reader) {
+    FeedDelta delta = next();
+    if (delta == null) {
+      return false;
+    }
+    if (delta.keyframe != null) {
+      restart.accept(delta.keyframe);
+      return true;
+    }
+    try {
+      reader.accept(delta.buffer.asReadOnlyBuffer());
+    }
+    finally {
+      delta.release();
+    }
+    return true;
+  }
+
+  // the same, for a reader that can't start over
+  boolean poll(Consumer<ByteBuffer> reader) {
+    return poll(keyframe -> {
+      throw new IllegalStateException("Fell behind the feed at delta " + keyframe.version);
+    }, reader);
+  }
+
+  // stop receiving deltas, giving back the ones not read yet
+  void close() {
+    feed.unsubscribe(this);
+    synchronized (this) {
+      releaseAll();
+    }
+  }
+
+  // give back every delta not read yet
+  void releaseAll() {
+    FeedDelta delta = deltas.poll();
+    while (delta != null) {
+      delta.release();
+      delta = deltas.poll();
+    }
+    pendingBytes = 0;
+  }
+}
+
+// publishes what changed on a board after each batch of input, so spectators
+// can follow a game without being sent the whole board every tick. a delta
+// holds the tiles whose wires changed, with their new wires, the tiles that
+// gained or lost power, and the stations that moved. only the region the power
+// update touched is compared, and deltas are encoded once into pooled buffers
+// that every subscriber reads in place. the deltas since the last keyframe
+// snapshot are kept for spectators who join late, and a new keyframe is taken
+// once they add up to more than the board itself
+//
+// a delta is, big-endian: the sequence number (long), the number of rewired
+// tiles (int) followed by each one's index (int) and wires (byte), the number
+// of tiles whose power flipped (int) followed by their indices (int), and the
+// number of moved stations (int) followed by each one's number and new tile
+// index (int, int)
+class ChangeFeed {
+  // how many spare buffers to keep around
+  static final int POOL_SIZE = 64;
+  // the fewest bytes of deltas a subscriber may fall behind by, however small the board
+  static final int MIN_LAG_BYTES = 1 << 12;
+
+  // the board as of the last delta
+  byte[] masks;
+  boolean[] powered;
+  int[] stations;
+  long seq;
+  // scratch space for the tiles that changed in a delta
+  int[] rewired;
+  int[] flipped;
+  int[] moved;
+  // the snapshot late subscribers start from, and the deltas published since
+  BoardSnapshot keyframe;
+  ArrayList<FeedDelta> log;
+  int logBytes;
+  ArrayList<FeedSubscription> subscribers;
+  ConcurrentLinkedQueue<ByteBuffer> pool;
+  AtomicInteger pooled;
+  // how many buffers have been allocated rather than taken from the pool
+  int allocated;
+
+  // a feed for the given game, whose power fields must be up to date
+  ChangeFeed(LightEmAll game) {
+    int size = game.nodes.size();
+    this.masks = new byte[size];
+    this.powered = new boolean[size];
+    for (int index = 0; index < size; index++) {
+      GamePiece tile = game.nodes.get(index);
+      masks[index] = (byte) tile.mask();
+      powered[index] = tile.powered;
+    }
+    this.stations = stationTiles(game);
+    this.rewired = new int[size];
+    this.flipped = new int[size];
+    this.moved = new int[stations.length];
+    this.keyframe = new BoardSnapshot(game, 0);
+    this.log = new ArrayList<>();
+    this.subscribers = new ArrayList<>();
+    this.pool = new ConcurrentLinkedQueue<>();
+    this.pooled = new AtomicInteger();
+  }
+
+  // the tile index of every station of the given game
+  static int[] stationTiles(LightEmAll game) {
+    int[] tiles = new int[game.stations.size()];
+    for (int s = 0; s < tiles.length; s++) {
+      tiles[s] = game.indexOf(game.stations.get(s));
+    }
+    return tiles;
+  }
+
+  // start following the game: from the last keyframe, followed by every
+  // delta published since
+  synchronized FeedSubscription subscribe() {
+    FeedSubscription subscription = new FeedSubscription(this, keyframe);
+    for (FeedDelta delta : log) {
+      delta.retain();
+      subscription.add(delta);
+    }
+    subscribers.add(subscription);
+    return subscription;
+  }
+
+  // stop sending deltas to the given subscription
+  synchronized void unsubscribe(FeedSubscription subscription) {
+    subscribers.remove(subscription);
+  }
+
+  // publish what changed among the first count of the given tiles,
+  // which must all be different
+  void publish(LightEmAll game, int[] tiles, int count) {
+    int rewiredCount = 0;
+    int flippedCount = 0;
+    for (int i = 0; i < count; i++) {
+      int index = tiles[i];
+      GamePiece tile = game.nodes.get(index);
+      if (masks[index] != tile.mask()) {
+        rewired[rewiredCount++] = index;
+      }
+      if (powered[index] != tile.powered) {
+        flipped[flippedCount++] = index;
+      }
+    }
+    publish(game, rewiredCount, flippedCount);
+  }
+
+  // publish what changed anywhere on the board, after a full power update
+  void publishAll(LightEmAll game) {
+    int rewiredCount = 0;
+    int flippedCount = 0;
+    for (int index = 0; index < masks.length; index++) {
+      GamePiece tile = game.nodes.get(index);
+      if (masks[index] != tile.mask()) {
+        rewired[rewiredCount++] = index;
+      }
+      if (powered[index] != tile.powered) {
+        flipped[flippedCount++] = index;
+      }
+    }
+    publish(game, rewiredCount, flippedCount);
+  }
+
+  // encode the given changes, along with any station moves, and hand them to
+  // every subscriber. nothing is published if nothing changed
+  void publish(LightEmAll game, int rewiredCount, int flippedCount) {
+    int movedCount = 0;
+    for (int s = 0; s < stations.length; s++) {
+      int tile = game.indexOf(game.stations.get(s));
+      if (stations[s] != tile) {
+        stations[s] = tile;
+        moved[movedCount++] = s;
+      }
+    }
+    if (rewiredCount == 0 && flippedCount == 0 && movedCount == 0) {
+      return;
+    }
+
+    ByteBuffer buffer = acquire(20 + 5 * rewiredCount + 4 * flippedCount + 8 * movedCount);
+    buffer.putLong(seq + 1);
+    buffer.putInt(rewiredCount);
+    for (int i = 0; i < rewiredCount; i++) {
+      int index = rewired[i];
+      masks[index] = (byte) game.nodes.get(index).mask();
+      buffer.putInt(index);
+      buffer.put(masks[index]);
+    }
+    buffer.putInt(flippedCount);
+    for (int i = 0; i < flippedCount; i++) {
+      int index = flipped[i];
+      powered[index] = !powered[index];
+      buffer.putInt(index);
+    }
+    buffer.putInt(movedCount);
+    for (int i = 0; i < movedCount; i++) {
+      buffer.putInt(moved[i]);
+      buffer.putInt(stations[moved[i]]);
+    }
+    buffer.flip();
+
+    synchronized (this) {
+      seq += 1;
+      FeedDelta delta = new FeedDelta(seq, buffer, this);
+      for (FeedSubscription subscription : subscribers) {
+        delta.retain();
+        subscription.add(delta);
+      }
+      logBytes += buffer.remaining();
+      if (logBytes > keyframeBytes()) {
+        // catching up from a new keyframe is now cheaper than replaying the log
+        delta.release();
+        for (FeedDelta old : log) {
+          old.release();
+        }
+        log.clear();
+        logBytes = 0;
+        keyframe = new BoardSnapshot(game, seq);
+      }
+      else {
+        log.add(delta);
+      }
+      for (FeedSubscription subscription : subscribers) {
+        if (lagBytes() < subscription.pendingBytes) {
+          subscription.restart(keyframe, log);
+        }
+      }
+    }
+  }
+
+  // how many bytes of deltas a subscriber may have waiting before it is dropped
+  // back to the keyframe. starting over costs the keyframe and a log that is
+  // never larger than it, so this is about twice the keyframe
+  int lagBytes() {
+    return Math.max(2 * keyframeBytes(), MIN_LAG_BYTES);
+  }
+
+  // about how many bytes a keyframe takes to send: the wires and
+  // distance of every tile, and where the stations are
+  int keyframeBytes() {
+    return 5 * masks.length + 4 * stations.length;
+  }
+
+  // a cleared buffer with room for the given number of bytes, from the pool
+  // if one there is large enough
+  ByteBuffer acquire(int bytes) {
+    ByteBuffer buffer = pool.poll();
+    if (buffer != null) {
+      pooled.decrementAndGet();
+      if (bytes <= buffer.capacity()) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+    allocated += 1;
+    return ByteBuffer.allocate(Math.max(bytes, 256));
+  }
+
+  // give the given buffer back to the pool, unless it is already full
+  void recycle(ByteBuffer buffer) {
+    if (pooled.incrementAndGet() <= POOL_SIZE) {
+      pool.add(buffer);
+    }
+    else {
+      pooled.decrementAndGet();
+    }
+  }
+}
+
+// a spectator's copy of a board, kept up to date from a change feed
+class SpectatorBoard {
+  long seq;
+  byte[] masks;
+  boolean[] powered;
+  int[] stations;
+
+  // the board as of the given snapshot
+  SpectatorBoard(BoardSnapshot snapshot) {
+    reset(snapshot);
+  }
+
+  // follow the given subscription from its start
+  SpectatorBoard(FeedSubscription subscription) {
+    this(subscription.start);
+  }
+
+  // start over from the given snapshot
+  void reset(BoardSnapshot snapshot) {
+    this.seq = snapshot.version;
+    this.masks = snapshot.masks.clone();
+    this.powered = new boolean[masks.length];
+    for (int index = 0; index < masks.length; index++) {
+      powered[index] = snapshot.dist[index] != -1;
+    }
+    this.stations = snapshot.stations.clone();
+  }
+
+  // apply every delta waiting in the given subscription
+  void catchUp(FeedSubscription subscription) {
+    while (subscription.poll(this::reset, this::apply)) {
+      continue;
+    }
+  }
+
+  // apply the given delta, skipping it if it is older than this board
+  void apply(ByteBuffer delta) {
+    long next = delta.getLong();
+    if (next <= seq) {
+      return;
+    }
+    if (next != seq + 1) {
+      throw new IllegalStateException("Missed deltas " + (seq + 1) + " to " + (next - 1));
+    }
+    seq = next;
+    for (int i = delta.getInt(); 0 < i; i--) {
+      int index = delta.getInt();
+      masks[index] = delta.get();
+    }
+    for (int i = delta.getInt(); 0 < i; i--) {
+      int index = delta.getInt();
+      powered[index] = !powered[index];
+    }
+    for (int i = delta.getInt(); 0 < i; i--) {
+      int station = delta.getInt();
+      stations[station] = delta.getInt();
+    }
+  }
+
+  // does this board look the same as the given game?
+  boolean matches(LightEmAll game) {
+    for (int index = 0; index < masks.length; index++) {
+      GamePiece tile = game.nodes.get(index);
+      if (masks[index] != tile.mask() || powered[index] != tile.powered) {
+        return false;
+      }
+    }
+    return Arrays.equals(stations, ChangeFeed.stationTiles(game));
+  }
+}
+
+// examples for following games from a change feed
+class ExamplesChangeFeed {
+  // tests the contents of a delta
+  void testDelta(Tester t) {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.startFeed();
+    FeedSubscription subscription = game.feed.subscribe();
+    GamePiece tile = game.nodes.get(4);
+    game.onMouseClicked(new Posn(75, 75), "LeftButton");
+    game.onTick();
+    ArrayList<Integer> rewired = new ArrayList<>();
+    t.checkExpect(subscription.poll(delta -> {
+      t.checkExpect(delta.isReadOnly(), true);
+      t.checkExpect(delta.getLong(), 1L);
+      for (int i = delta.getInt(); 0 < i; i--) {
+        rewired.add(delta.getInt());
+        rewired.add((int) delta.get());
+      }
+    }), true);
+    t.checkExpect(rewired, new ArrayList<>(Arrays.asList(4, tile.mask())));
+    // four turns of a tile change nothing, so nothing is published
+    for (int i = 0; i < 4; i++) {
+      game.onMouseClicked(new Posn(75, 75), "LeftButton");
+    }
+    game.onTick();
+    t.checkExpect(subscription.poll(delta -> { }), false);
+  }
+
+  // tests that spectators who join at any point end up with the same board
+  void testSpectators(Tester t) {
+    Random rand = new Random(12);
+    LightEmAll game = new LightEmAll(8, 6, 3, rand);
+    game.startFeed();
+    FeedSubscription earlyFeed = game.feed.subscribe();
+    SpectatorBoard early = new SpectatorBoard(earlyFeed);
+    FeedSubscription lateFeed = null;
+    String[] keys = {"up", "down", "left", "right", "1", "2", "3"};
+    for (int tick = 0; tick < 300; tick++) {
+      for (int i = rand.nextInt(4); 0 < i; i--) {
+        game.onMouseClicked(new Posn(rand.nextInt(400), rand.nextInt(300)), "LeftButton");
+      }
+      if (rand.nextInt(3) == 0) {
+        game.onKeyEvent(keys[rand.nextInt(keys.length)]);
+      }
+      if (tick == 150) {
+        // bypasses the queue, so the whole board is compared
+        game.rotateTile(2, 3);
+      }
+      game.onTick();
+      if (tick == 200) {
+        lateFeed = game.feed.subscribe();
+      }
+    }
+    SpectatorBoard late = new SpectatorBoard(lateFeed);
+    early.catchUp(earlyFeed);
+    late.catchUp(lateFeed);
+    t.checkExpect(early.matches(game), true);
+    t.checkExpect(late.matches(game), true);
+    t.checkExpect(late.seq, game.feed.seq);
+    // a keyframe was taken along the way, so the late spectator didn't replay
+    // the whole game
+    t.checkExpect(0 < game.feed.keyframe.version, true);
+  }
+
+  // tests that a spectator that stops reading is dropped back to the keyframe
+  void testLagging(Tester t) {
+    Random rand = new Random(5);
+    LightEmAll game = new LightEmAll(10, 10, 2, rand);
+    game.startFeed();
+    FeedSubscription subscription = game.feed.subscribe();
+    SpectatorBoard board = new SpectatorBoard(subscription);
+    int most = 0;
+    for (int tick = 0; tick < 2000; tick++) {
+      game.onMouseClicked(new Posn(rand.nextInt(500), rand.nextInt(500)), "LeftButton");
+      game.onTick();
+      most = Math.max(most, subscription.pendingBytes);
+    }
+    t.checkExpect(most <= game.feed.lagBytes(), true);
+    t.checkExpect(subscription.deltas.peek().keyframe != null, true);
+    board.catchUp(subscription);
+    t.checkExpect(board.matches(game), true);
+    t.checkExpect(board.seq, game.feed.seq);
+    t.checkExpect(subscription.pendingBytes, 0);
+  }
+
+  // tests that subscribers share one buffer, which goes back to the pool once
+  // every one of them has read it
+  void testPooling(Tester t) {
+    LightEmAll game = new LightEmAll(10, 10, 4);
+    game.startFeed();
+    FeedSubscription first = game.feed.subscribe();
+    FeedSubscription second = game.feed.subscribe();
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onTick();
+    FeedDelta delta = first.deltas.peek();
+    t.checkExpect(second.deltas.peek() == delta, true);
+    // the two subscribers and the log
+    t.checkExpect(delta.refs.get(), 3);
+    first.poll(buffer -> { });
+    second.close();
+    t.checkExpect(game.feed.pool.isEmpty(), true);
+    // a new keyframe releases the log, which recycles the buffer
+    game.feed.logBytes = game.feed.keyframeBytes();
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onTick();
+    t.checkExpect(game.feed.pool.size(), 1);
+    first.poll(buffer -> { });
+    t.checkExpect(game.feed.pool.size(), 2);
+    t.checkExpect(game.feed.allocated, 2);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onTick();
+    t.checkExpect(game.feed.allocated, 2);
+  }
+}
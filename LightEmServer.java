@@ -0,0 +1,696 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import tester.*;
+
+// opcodes and status codes of the binary protocol spoken by LightEmServer.
+// every request is an opcode byte followed by its arguments, and every reply
+// starts with a status byte. all numbers are big-endian, as written by DataOutput
+//   CREATE  int width, int height, int stations, long seed   -> long session
+//   ROTATE  long session, int tile                           -> int moves
+//   MOVE    long session, int station, byte dir              -> byte moved
+//   STATE   long session                                     -> see writeState
+//   CLOSE   long session                                     -> (nothing)
+class LightEmProtocol {
+  static final byte CREATE = 1;
+  static final byte ROTATE = 2;
+  static final byte MOVE = 3;
+  static final byte STATE = 4;
+  static final byte CLOSE = 5;
+
+  static final byte OK = 0;
+  static final byte UNKNOWN_SESSION = 1;
+  static final byte BAD_REQUEST = 2;
+
+  // the largest board a client may create. boards are built on the
+  // connection thread by the standard generator, whose minimum spanning
+  // tree is quadratic in the edge count and whose longest path search
+  // recurses once per tile, so a 1x4096 strip is about as far as it goes
+  static final int MAX_TILES = 1 << 12;
+
+  // the arrow key for each wire direction, so MOVE can send a direction byte
+  static final String[] KEYS = {"up", "down", "left", "right"};
+
+  // write the state of the given game: int width, int height, int moves,
+  // byte won, int station count and the tile index of each station,
+  // then the wire mask of every tile, two tiles per byte
+  static void writeState(LightEmAll game, DataOutputStream out) throws IOException {
+    out.writeInt(game.width);
+    out.writeInt(game.height);
+    out.writeInt(game.moves);
+    out.writeByte(game.allPowered() ? 1 : 0);
+    out.writeInt(game.stations.size());
+    for (GamePiece station : game.stations) {
+      out.writeInt(game.indexOf(station));
+    }
+    int size = game.nodes.size();
+    for (int i = 0; i < size; i += 2) {
+      int low = game.nodes.get(i).mask();
+      int high = i + 1 < size ? game.nodes.get(i + 1).mask() : 0;
+      out.writeByte(low | (high << 4));
+    }
+  }
+}
+
+// one game hosted by the server. a session is confined to a single writer:
+// operations are queued on its mailbox, and whichever thread finds the session
+// idle runs everything queued on it, so two operations never touch the board
+// at the same time and no lock is held while a board is being updated
+class GameSession {
+  long id;
+  LightEmAll game;
+  ConcurrentLinkedQueue<Runnable> mailbox;
+  AtomicBoolean running;
+  // whether the board changed since it was last checkpointed
+  AtomicBoolean dirty;
+  // how many posted operations have thrown, and the most recent of them
+  AtomicLong failures;
+  volatile RuntimeException lastFailure;
+
+  GameSession(long id, LightEmAll game) {
+    this.id = id;
+    this.game = game;
+    this.mailbox = new ConcurrentLinkedQueue<>();
+    this.running = new AtomicBoolean(false);
+    this.dirty = new AtomicBoolean(true);
+    this.failures = new AtomicLong();
+  }
+
+  // run the given operation on this session's board and return its result
+  <T> T call(Function<LightEmAll, T> op) {
+    FutureTask<T> task = new FutureTask<>(() -> op.apply(game));
+    mailbox.add(task);
+    drain();
+    try {
+      return task.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for session " + id, e);
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException("Operation failed on session " + id, e.getCause());
+    }
+  }
+
+  // queue the given operation on this session's board without waiting for it.
+  // it runs right away if the session is idle, or after the operations ahead of it
+  void post(Consumer<LightEmAll> op) {
+    mailbox.add(() -> op.accept(game));
+    drain();
+  }
+
+  // run queued operations until the mailbox is empty. the check after
+  // releasing the session catches operations queued while it was being released.
+  // a posted operation that throws is counted in failures and skipped, so it cannot
+  // strand the operations queued behind it (called operations keep theirs in the future)
+  void drain() {
+    while (!mailbox.isEmpty() && running.compareAndSet(false, true)) {
+      try {
+        Runnable next = mailbox.poll();
+        while (next != null) {
+          try {
+            next.run();
+          }
+          catch (RuntimeException e) {
+            lastFailure = e;
+            failures.incrementAndGet();
+          }
+          next = mailbox.poll();
+        }
+      }
+      finally {
+        running.set(false);
+      }
+    }
+  }
+}
+
+// all live sessions, split over stripes that are each guarded by their own
+// lock, so connections touching different sessions rarely contend
+class SessionRegistry {
+  static final int STRIPES = 64;
+
+  ArrayList<HashMap<Long, GameSession>> stripes;
+  AtomicLong nextId;
+
+  SessionRegistry() {
+    this.stripes = new ArrayList<>();
+    for (int i = 0; i < STRIPES; i++) {
+      stripes.add(new HashMap<>());
+    }
+    this.nextId = new AtomicLong(1);
+  }
+
+  // the stripe the session with the given id lives in
+  HashMap<Long, GameSession> stripe(long id) {
+    return stripes.get((int) (id ^ (id >>> 32)) & (STRIPES - 1));
+  }
+
+  // register a new session for the given game
+  GameSession create(LightEmAll game) {
+    return add(new GameSession(nextId.getAndIncrement(), game));
+  }
+
+  // register the given session, keeping ids of new sessions above its id
+  GameSession add(GameSession session) {
+    nextId.accumulateAndGet(session.id + 1, Math::max);
+    HashMap<Long, GameSession> stripe = stripe(session.id);
+    synchronized (stripe) {
+      stripe.put(session.id, session);
+    }
+    return session;
+  }
+
+  // the session with the given id, or null if there is none
+  GameSession get(long id) {
+    HashMap<Long, GameSession> stripe = stripe(id);
+    synchronized (stripe) {
+      return stripe.get(id);
+    }
+  }
+
+  // remove the session with the given id, returning it (or null)
+  GameSession remove(long id) {
+    HashMap<Long, GameSession> stripe = stripe(id);
+    synchronized (stripe) {
+      return stripe.remove(id);
+    }
+  }
+
+  // a copy of all sessions, taken one stripe at a time
+  ArrayList<GameSession> all() {
+    ArrayList<GameSession> sessions = new ArrayList<>();
+    for (HashMap<Long, GameSession> stripe : stripes) {
+      synchronized (stripe) {
+        sessions.addAll(stripe.values());
+      }
+    }
+    return sessions;
+  }
+
+  // the number of live sessions
+  int size() {
+    int size = 0;
+    for (HashMap<Long, GameSession> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+}
+
+// a headless server hosting many games at once over a local socket.
+// every connection is served by its own (virtual, where the JVM has them) thread
+class LightEmServer {
+  SessionRegistry sessions;
+  // writes live boards to disk in the background, if there is one
+  SessionCheckpointer checkpointer;
+  ServerSocket socket;
+  ExecutorService connections;
+  Thread acceptor;
+
+  LightEmServer() {
+    this.sessions = new SessionRegistry();
+  }
+
+  // start listening on the given loopback port (0 for any free port),
+  // returning the port actually used
+  int start(int port) throws IOException {
+    socket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    connections = newConnectionExecutor();
+    acceptor = new Thread(this::acceptLoop, "light-em-server-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return socket.getLocalPort();
+  }
+
+  // a thread per connection: virtual threads on JDKs that have them,
+  // otherwise a pool of daemon platform threads
+  static ExecutorService newConnectionExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "light-em-server-connection");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  // accept connections until the socket is closed
+  void acceptLoop() {
+    while (!socket.isClosed()) {
+      try {
+        Socket client = socket.accept();
+        client.setTcpNoDelay(true);
+        connections.execute(() -> serve(client));
+      }
+      catch (IOException e) {
+        // the socket was closed by stop()
+      }
+    }
+  }
+
+  // answer requests from the given client until it disconnects
+  void serve(Socket client) {
+    try (client) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(client.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(client.getOutputStream()));
+      while (true) {
+        int opcode = in.read();
+        if (opcode == -1) {
+          return;
+        }
+        handle((byte) opcode, in, out);
+        // replies to pipelined requests go out together
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+    }
+    catch (IOException e) {
+      // the client went away; its sessions stay until they are closed
+    }
+  }
+
+  // read the arguments of one request and write its reply
+  void handle(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+    if (opcode == LightEmProtocol.CREATE) {
+      int width = in.readInt();
+      int height = in.readInt();
+      int stations = in.readInt();
+      long seed = in.readLong();
+      if (width < 1 || height < 1 || LightEmProtocol.MAX_TILES / width < height
+          || stations < 1 || width * height < stations) {
+        out.writeByte(LightEmProtocol.BAD_REQUEST);
+        return;
+      }
+      GameSession session = sessions.create(
+          new LightEmAll(width, height, stations, new Random(seed)));
+      session.call(game -> {
+        game.processInput();
+        return null;
+      });
+      out.writeByte(LightEmProtocol.OK);
+      out.writeLong(session.id);
+    }
+    else if (opcode == LightEmProtocol.ROTATE) {
+      GameSession session = sessions.get(in.readLong());
+      int tile = in.readInt();
+      if (session == null) {
+        out.writeByte(LightEmProtocol.UNKNOWN_SESSION);
+      }
+      else if (tile < 0 || session.game.nodes.size() <= tile) {
+        out.writeByte(LightEmProtocol.BAD_REQUEST);
+      }
+      else {
+        int moves = session.call(game -> {
+          game.input.rotate(tile);
+          game.processInput();
+          session.dirty.set(true);
+          return game.moves;
+        });
+        out.writeByte(LightEmProtocol.OK);
+        out.writeInt(moves);
+      }
+    }
+    else if (opcode == LightEmProtocol.MOVE) {
+      GameSession session = sessions.get(in.readLong());
+      int station = in.readInt();
+      int dir = in.readByte();
+      if (session == null) {
+        out.writeByte(LightEmProtocol.UNKNOWN_SESSION);
+      }
+      else if (station < 0 || session.game.stations.size() <= station || dir < 0 || 3 < dir) {
+        out.writeByte(LightEmProtocol.BAD_REQUEST);
+      }
+      else {
+        boolean moved = session.call(game -> {
+          int before = game.moves;
+          game.input.move(station, LightEmProtocol.KEYS[dir]);
+          game.processInput();
+          session.dirty.set(true);
+          return game.moves != before;
+        });
+        out.writeByte(LightEmProtocol.OK);
+        out.writeByte(moved ? 1 : 0);
+      }
+    }
+    else if (opcode == LightEmProtocol.STATE) {
+      GameSession session = sessions.get(in.readLong());
+      if (session == null) {
+        out.writeByte(LightEmProtocol.UNKNOWN_SESSION);
+      }
+      else {
+        // encode on the session's writer, so the state is never torn
+        byte[] state = session.call(game -> {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          try {
+            LightEmProtocol.writeState(game, new DataOutputStream(bytes));
+          }
+          catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return bytes.toByteArray();
+        });
+        out.writeByte(LightEmProtocol.OK);
+        out.write(state);
+      }
+    }
+    else if (opcode == LightEmProtocol.CLOSE) {
+      GameSession session = sessions.remove(in.readLong());
+      if (session != null && checkpointer != null) {
+        checkpointer.closed(session);
+      }
+      out.writeByte(session == null ? LightEmProtocol.UNKNOWN_SESSION : LightEmProtocol.OK);
+    }
+    else {
+      // the rest of the stream can't be parsed, so give up on this client
+      out.writeByte(LightEmProtocol.BAD_REQUEST);
+      out.flush();
+      throw new IOException("Unknown opcode " + opcode);
+    }
+  }
+
+  // stop accepting connections and close the ones that are open
+  void stop() throws IOException {
+    socket.close();
+    connections.shutdownNow();
+  }
+
+  // run a server on the given port until the process is killed.
+  // usage: LightEmServer [port] [checkpoint directory]
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 4040;
+    LightEmServer server = new LightEmServer();
+    if (args.length > 1) {
+      File dir = new File(args[1]);
+      int recovered = SessionCheckpointer.recover(dir, server.sessions);
+      System.out.println("Recovered " + recovered + " sessions from " + dir);
+      server.checkpointer = new SessionCheckpointer(dir, server.sessions);
+      server.checkpointer.start();
+    }
+    System.out.println("Light 'Em All server listening on port " + server.start(port));
+    server.acceptor.join();
+  }
+}
+
+// a blocking client for LightEmServer, one request at a time
+class LightEmClient implements Closeable {
+  Socket socket;
+  DataInputStream in;
+  DataOutputStream out;
+
+  LightEmClient(int port) throws IOException {
+    this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    socket.setTcpNoDelay(true);
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  // create a game and return its session id
+  long create(int width, int height, int stations, long seed) throws IOException {
+    out.writeByte(LightEmProtocol.CREATE);
+    out.writeInt(width);
+    out.writeInt(height);
+    out.writeInt(stations);
+    out.writeLong(seed);
+    expectOk();
+    return in.readLong();
+  }
+
+  // rotate the given tile clockwise and return the game's move count
+  int rotate(long session, int tile) throws IOException {
+    out.writeByte(LightEmProtocol.ROTATE);
+    out.writeLong(session);
+    out.writeInt(tile);
+    expectOk();
+    return in.readInt();
+  }
+
+  // move the given station in the given wire direction, returning whether it moved
+  boolean move(long session, int station, int dir) throws IOException {
+    out.writeByte(LightEmProtocol.MOVE);
+    out.writeLong(session);
+    out.writeInt(station);
+    out.writeByte(dir);
+    expectOk();
+    return in.readByte() == 1;
+  }
+
+  // the wire masks of every tile of the given game. the fields sent before
+  // them are added to header as width, height, moves, won, then the station tiles
+  int[] state(long session, ArrayList<Integer> header) throws IOException {
+    out.writeByte(LightEmProtocol.STATE);
+    out.writeLong(session);
+    expectOk();
+    int width = in.readInt();
+    int height = in.readInt();
+    header.add(width);
+    header.add(height);
+    header.add(in.readInt());
+    header.add((int) in.readByte());
+    int stations = in.readInt();
+    for (int i = 0; i < stations; i++) {
+      header.add(in.readInt());
+    }
+    int[] masks = new int[width * height];
+    for (int i = 0; i < masks.length; i += 2) {
+      int packed = in.readUnsignedByte();
+      masks[i] = packed & 15;
+      if (i + 1 < masks.length) {
+        masks[i + 1] = packed >> 4;
+      }
+    }
+    return masks;
+  }
+
+  // end the given game
+  void closeSession(long session) throws IOException {
+    out.writeByte(LightEmProtocol.CLOSE);
+    out.writeLong(session);
+    expectOk();
+  }
+
+  // send the buffered request and fail unless the reply is OK
+  void expectOk() throws IOException {
+    out.flush();
+    int status = in.readByte();
+    if (status != LightEmProtocol.OK) {
+      throw new IOException("Request failed with status " + status);
+    }
+  }
+
+  public void close() throws IOException {
+    socket.close();
+  }
+}
+
+// drives a server over loopback with many concurrent clients, each playing its
+// own game, and reports throughput and latency percentiles of the requests
+class LightEmLoadGen {
+  int clients;
+  int requestsPerClient;
+  int boardSize;
+
+  // results of the last run
+  long requests;
+  double seconds;
+  long[] latencies;
+
+  LightEmLoadGen(int clients, int requestsPerClient, int boardSize) {
+    this.clients = clients;
+    this.requestsPerClient = requestsPerClient;
+    this.boardSize = boardSize;
+  }
+
+  // run the load against the server on the given port
+  void run(int port) throws Exception {
+    latencies = new long[clients * requestsPerClient];
+    ExecutorService pool = LightEmServer.newConnectionExecutor();
+    CountDownLatch ready = new CountDownLatch(clients);
+    CountDownLatch go = new CountDownLatch(1);
+    ArrayList<Future<?>> done = new ArrayList<>();
+    for (int c = 0; c < clients; c++) {
+      int client = c;
+      done.add(pool.submit(() -> {
+        try (LightEmClient conn = new LightEmClient(port)) {
+          Random rand = new Random(client);
+          long session = conn.create(boardSize, boardSize, 1, client);
+          ready.countDown();
+          go.await();
+          int tiles = boardSize * boardSize;
+          for (int i = 0; i < requestsPerClient; i++) {
+            long start = System.nanoTime();
+            if (i % 16 == 15) {
+              conn.state(session, new ArrayList<>());
+            }
+            else if (i % 16 == 7) {
+              conn.move(session, 0, rand.nextInt(4));
+            }
+            else {
+              conn.rotate(session, rand.nextInt(tiles));
+            }
+            latencies[client * requestsPerClient + i] = System.nanoTime() - start;
+          }
+          conn.closeSession(session);
+        }
+        return null;
+      }));
+    }
+    ready.await();
+    long start = System.nanoTime();
+    go.countDown();
+    for (Future<?> future : done) {
+      future.get();
+    }
+    seconds = (System.nanoTime() - start) / 1e9;
+    requests = latencies.length;
+    pool.shutdown();
+    Arrays.sort(latencies);
+  }
+
+  // the latency in microseconds below which the given fraction of requests finished
+  double percentileMicros(double fraction) {
+    int index = (int) Math.min(latencies.length - 1, Math.ceil(fraction * latencies.length) - 1);
+    return latencies[Math.max(0, index)] / 1e3;
+  }
+
+  // a one-line summary of the last run
+  String report() {
+    return String.format("%d clients, %d requests in %.2fs: %.0f req/s, p50 %.1fus, p99 %.1fus",
+        clients, requests, seconds, requests / seconds,
+        percentileMicros(0.50), percentileMicros(0.99));
+  }
+
+  // usage: LightEmLoadGen [clients] [requests per client] [board size]
+  // runs against a server started in this process
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int size = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    LightEmServer server = new LightEmServer();
+    int port = server.start(0);
+    LightEmLoadGen load = new LightEmLoadGen(clients, requests, size);
+    load.run(port);
+    System.out.println(load.report());
+    server.stop();
+  }
+}
+
+// examples for the game server
+class ExamplesLightEmServer {
+  LightEmServer server;
+  int port;
+
+  // start a fresh server on a free port
+  void init() throws IOException {
+    server = new LightEmServer();
+    port = server.start(0);
+  }
+
+  // tests creating, playing and closing a game over the protocol
+  void testProtocol(Tester t) throws IOException {
+    init();
+    try (LightEmClient client = new LightEmClient(port)) {
+      long session = client.create(3, 3, 1, 4);
+      LightEmAll local = new LightEmAll(3, 3, 4);
+
+      ArrayList<Integer> header = new ArrayList<>();
+      int[] masks = client.state(session, header);
+      t.checkExpect(new ArrayList<>(header.subList(0, 4)),
+          new ArrayList<>(Arrays.asList(3, 3, 0, 0)));
+      t.checkExpect(header.get(4), local.indexOf(local.stations.get(0)));
+      for (int i = 0; i < 9; i++) {
+        t.checkExpect(masks[i], local.nodes.get(i).mask());
+      }
+
+      t.checkExpect(client.rotate(session, 4), 1);
+      t.checkExpect(client.rotate(session, 4), 2);
+      local.nodes.get(4).rotate();
+      local.nodes.get(4).rotate();
+      masks = client.state(session, new ArrayList<>());
+      t.checkExpect(masks[4], local.nodes.get(4).mask());
+
+      client.closeSession(session);
+      t.checkExpect(server.sessions.size(), 0);
+    }
+    server.stop();
+  }
+
+  // tests that bad requests are rejected without killing the connection
+  void testBadRequests(Tester t) throws IOException {
+    init();
+    try (LightEmClient client = new LightEmClient(port)) {
+      long session = client.create(2, 2, 1, 1);
+      client.out.writeByte(LightEmProtocol.ROTATE);
+      client.out.writeLong(session);
+      client.out.writeInt(4);
+      client.out.flush();
+      t.checkExpect(client.in.readByte(), LightEmProtocol.BAD_REQUEST);
+      client.out.writeByte(LightEmProtocol.STATE);
+      client.out.writeLong(session + 100);
+      client.out.flush();
+      t.checkExpect(client.in.readByte(), LightEmProtocol.UNKNOWN_SESSION);
+      t.checkExpect(client.rotate(session, 3), 1);
+    }
+    server.stop();
+  }
+
+  // tests that operations on one session from many threads are all applied
+  void testSingleWriter(Tester t) throws Exception {
+    GameSession session = new GameSession(1, new LightEmAll(4, 4, 2));
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    ArrayList<Future<?>> done = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      done.add(pool.submit(() -> {
+        for (int k = 0; k < 500; k++) {
+          session.call(game -> {
+            game.input.rotate(5);
+            game.processInput();
+            return null;
+          });
+        }
+      }));
+    }
+    for (Future<?> future : done) {
+      future.get();
+    }
+    pool.shutdown();
+    t.checkExpect(session.game.moves, 4000);
+  }
+
+  // tests that a posted operation that throws does not strand the ones behind it
+  void testFailingPost(Tester t) {
+    GameSession session = new GameSession(1, new LightEmAll(2, 2, 1));
+    session.post(game -> {
+      throw new IllegalStateException("boom");
+    });
+    t.checkExpect(session.call(game -> game.width), 2);
+    t.checkExpect(session.running.get(), false);
+    t.checkExpect(session.failures.get(), 1L);
+    t.checkExpect(session.lastFailure.getMessage(), "boom");
+  }
+
+  // tests a small load run end to end
+  void testLoadGen(Tester t) throws Exception {
+    init();
+    LightEmLoadGen load = new LightEmLoadGen(8, 50, 5);
+    load.run(port);
+    t.checkExpect(load.requests, 400L);
+    t.checkExpect(load.percentileMicros(0.5) <= load.percentileMicros(0.99), true);
+    t.checkExpect(server.sessions.size(), 0);
+    server.stop();
+  }
+}
@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.*;
 
 import tester.*;
 import javalib.impworld.*;
@@ -8,6 +9,12 @@ import javalib.worldimages.*;
 
 //class for the pieces on the board
 class GamePiece {
+  // the four wire directions, in the order neighbors are visited
+  static final int TOP = 0;
+  static final int BOTTOM = 1;
+  static final int LEFT = 2;
+  static final int RIGHT = 3;
+
   // in logical coordinates, with the origin
   // at the top-left corner of the screen
   int row;
@@ -61,6 +68,63 @@ class GamePiece {
   }
 
 
+  // whether this piece has a wire going in the given direction
+  boolean hasWire(int dir) {
+    if (dir == TOP) {
+      return this.top;
+    }
+    else if (dir == BOTTOM) {
+      return this.bottom;
+    }
+    else if (dir == LEFT) {
+      return this.left;
+    }
+    else {
+      return this.right;
+    }
+  }
+
+  // the wires of this piece as a 4-bit mask, with bit (1 << dir) set
+  // for each direction that has a wire
+  int mask() {
+    int mask = 0;
+    for (int dir = 0; dir < 4; dir++) {
+      if (hasWire(dir)) {
+        mask |= 1 << dir;
+      }
+    }
+    return mask;
+  }
+
+  // set the wires of this piece from a mask made by mask()
+  void setMask(int mask) {
+    setConnections((mask & (1 << LEFT)) != 0, (mask & (1 << RIGHT)) != 0,
+        (mask & (1 << TOP)) != 0, (mask & (1 << BOTTOM)) != 0);
+  }
+
+  // the given mask turned clockwise once, the way rotate() turns a piece
+  static int rotated(int mask) {
+    int turned = 0;
+    if ((mask & (1 << LEFT)) != 0) {
+      turned |= 1 << TOP;
+    }
+    if ((mask & (1 << RIGHT)) != 0) {
+      turned |= 1 << BOTTOM;
+    }
+    if ((mask & (1 << BOTTOM)) != 0) {
+      turned |= 1 << LEFT;
+    }
+    if ((mask & (1 << TOP)) != 0) {
+      turned |= 1 << RIGHT;
+    }
+    return turned;
+  }
+
+  // the direction opposite to the given one
+  static int opposite(int dir) {
+    return dir ^ 1;
+  }
+
   // Generate an image of this, the given GamePiece.
   // - size: the size of the tile, in pixels
   // - wireWidth: the width of wires, in pixels
@@ -68,6 +132,12 @@ class GamePiece {
   // - hasPowerStation: if true, draws a fancy star on this tile to represent the
   // power station
   WorldImage tileImage(int size, int wireWidth, Color wireColor, boolean hasPowerStation) {
+    return tileImage(mask(), size, wireWidth, wireColor, hasPowerStation);
+  }
+
+  // Generate an image of a tile with the wires of the given mask, as above
+  static WorldImage tileImage(int mask, int size, int wireWidth, Color wireColor,
+                              boolean hasPowerStation) {
     // Start tile image off as a blue square with a wire-width square in the middle,
     // to make image "cleaner" (will look strange if tile has no wire, but that
     // can't be)
@@ -77,20 +147,19 @@ class GamePiece {
     WorldImage vWire = new RectangleImage(wireWidth, (size + 1) / 2, OutlineMode.SOLID, wireColor);
     WorldImage hWire = new RectangleImage((size + 1) / 2, wireWidth, OutlineMode.SOLID, wireColor);
 
-    if (this.top) {
+    if ((mask & (1 << TOP)) != 0) {
       image = new OverlayOffsetAlign(AlignModeX.CENTER, AlignModeY.TOP, vWire, 0, 0, image);
     }
-    if (this.right) {
+    if ((mask & (1 << RIGHT)) != 0) {
       image = new OverlayOffsetAlign(AlignModeX.RIGHT, AlignModeY.MIDDLE, hWire, 0, 0, image);
     }
-    if (this.bottom) {
+    if ((mask & (1 << BOTTOM)) != 0) {
       image = new OverlayOffsetAlign(AlignModeX.CENTER, AlignModeY.BOTTOM, vWire, 0, 0, image);
     }
-    if (this.left) {
-
+    if ((mask & (1 << LEFT)) != 0) {
       image = new OverlayOffsetAlign(AlignModeX.LEFT, AlignModeY.MIDDLE, hWire, 0, 0, image);
     }
-    if (this.powerStation) {
+    if (hasPowerStation) {
       image = new OverlayImage(new OverlayImage(
           new StarImage(size / 3.0, 7, OutlineMode.OUTLINE, new Color(255, 128, 0)),
           new StarImage(size / 3.0, 7, OutlineMode.SOLID, new Color(0, 255, 255))), image);
@@ -185,11 +254,52 @@ class LightEmAll extends World {
   int height;
   // the pixel sidelength of a game tile
   int tileSize;
-  // the current location of the power station,
-  // as well as its effective radius
+  // the current location of the active power station (the one moved by
+  // the arrow keys), as well as the effective radius of every station
   int powerRow;
   int powerCol;
   int radius;
+  // all power stations on the board, and the index of the active one
+  ArrayList<GamePiece> stations;
+  int stationCount;
+  int activeStation;
+  // results of the last power update, indexed by row * width + col:
+  // the distance to the nearest station (-1 if unpowered) and which station that is
+  int[] stationDist;
+  int[] nearestStation;
+  // how many tiles each station is currently the nearest station for
+  int[] coverage;
+  // reusable worklist for the multi-source breadth first search
+  int[] queue;
+  // the neighbors of every tile, which the floods and searches look up
+  // instead of working them out from the row and column
+  BoardLayout layout;
+  // the tiles whose power must be recomputed after a batch of input,
+  // marked with the current epoch in regionStamp
+  int[] region;
+  int[] regionStamp;
+  int regionEpoch;
+  // clicks and key presses waiting to be applied on the next tick
+  InputQueue input;
+  // whether the power fields no longer match the board and need a full update
+  boolean powerStale;
+  // how many rotations and station moves the player has made
+  int moves;
+  // renders frames in the background once started, or null to draw in makeScene
+  RenderPipeline pipeline;
+  // draws the board into one reusable image, or null to draw an image per tile
+  RasterRenderer raster;
+  // counts the snapshots taken of this board
+  long version;
+  // publishes the changes from each batch of input to spectators, or null
+  ChangeFeed feed;
+  // publishes versions of the board for other threads to read, or null
+  VersionedBoard versions;
+  // spreads power over several ticks, or null to update it all at once
+  PowerWave wave;
+  // keeps the wiring as bitsets, to check for a win while the power fields
+  // are behind the wiring, or null
+  BitboardPower bitboard;
   // Random object
   Random rand;
   // all edges in the game
@@ -197,12 +307,20 @@ class LightEmAll extends World {
   // all representatives in the game
   HashMap<GamePiece, GamePiece> representatives;
 
-  // constructor for the board
-  LightEmAll(int width, int height, Random rand) {
+  // constructor for the board with any number of power stations
+  LightEmAll(int width, int height, int stationCount, Random rand) {
+    if (stationCount < 1 || width * height < stationCount) {
+      throw new IllegalArgumentException("Cannot place " + stationCount
+          + " power stations on a " + width + "x" + height + " board");
+    }
     this.rand = rand;
     this.width = width;
     this.height = height;
     this.tileSize = 50;
+    this.stationCount = stationCount;
+    this.activeStation = 0;
+    this.input = new InputQueue();
+    this.layout = BoardLayout.rowMajor(width, height);
 
     this.powerRow = rand.nextInt(height);
     this.powerCol = rand.nextInt(width);
@@ -212,6 +330,50 @@ class LightEmAll extends World {
     scrambleBoard();
   }
 
+  // constructor for a board restored from a checkpoint: the wire mask of every
+  // tile in row-major order, the tile index of every station, which station is
+  // active, and the radius and move count the game had
+  LightEmAll(int width, int height, int[] masks, int[] stationTiles, int activeStation,
+             int radius, int moves) {
+    this.rand = new Random();
+    this.width = width;
+    this.height = height;
+    this.tileSize = 50;
+    this.stationCount = stationTiles.length;
+    this.activeStation = activeStation;
+    this.radius = radius;
+    this.moves = moves;
+    this.input = new InputQueue();
+    this.layout = BoardLayout.rowMajor(width, height);
+
+    board = new ArrayList<>();
+    nodes = new ArrayList<>();
+    for (int i = 0; i < height; i++) {
+      ArrayList<GamePiece> row = new ArrayList<>();
+      for (int j = 0; j < width; j++) {
+        GamePiece tile = new GamePiece(i, j, false, false, false, false, rand);
+        tile.setMask(masks[i * width + j]);
+        row.add(tile);
+        nodes.add(tile);
+      }
+      board.add(row);
+    }
+    stations = new ArrayList<>();
+    for (int index : stationTiles) {
+      GamePiece station = nodes.get(index);
+      station.powerStation = true;
+      stations.add(station);
+    }
+    this.powerRow = stations.get(activeStation).row;
+    this.powerCol = stations.get(activeStation).col;
+    this.powerStale = true;
+  }
+
+  // constructor for the board
+  LightEmAll(int width, int height, Random rand) {
+    this(width, height, 1, rand);
+  }
+
   // game board constructor (with random seed)
   LightEmAll(int width, int height, int seed) {
     this(width, height, new Random(seed));
@@ -243,8 +405,18 @@ class LightEmAll extends World {
       }
       board.add(row);
     }
-    // create the powerStation
-    board.get(powerRow).get(powerCol).powerStation = true;
+    // create the powerStation, followed by any additional stations
+    stations = new ArrayList<>();
+    GamePiece first = board.get(powerRow).get(powerCol);
+    first.powerStation = true;
+    stations.add(first);
+    while (stations.size() < stationCount) {
+      GamePiece station = board.get(rand.nextInt(height)).get(rand.nextInt(width));
+      if (!station.powerStation) {
+        station.powerStation = true;
+        stations.add(station);
+      }
+    }
 
     return board;
   }
@@ -334,29 +506,137 @@ class LightEmAll extends World {
     }
   }
 
-  // update the power for all game tiles
+  // update the power for all game tiles with one breadth first search that starts
+  // from every station at once. each tile is claimed by the first station to reach
+  // it, which gives the nearest-station distance used by the gradient and the
+  // per-station coverage in a single O(tiles) pass, however many stations there are
   void updatePower() {
+    allocatePower();
+    powerStale = false;
+    if (bitboard != null) {
+      // tiles may have been turned directly, so start the bitsets over too
+      bitboard.load(this);
+    }
+    coverage = new int[stations.size()];
+    Arrays.fill(stationDist, -1);
+    Arrays.fill(nearestStation, -1);
     resetNodesPowered();
-    GamePiece powerStation = board.get(powerRow).get(powerCol);
-    updatePowerStatus(powerStation);
+
+    int head = 0;
+    int tail = 0;
+    for (int s = 0; s < stations.size(); s++) {
+      int index = indexOf(stations.get(s));
+      claim(index, s, 0);
+      queue[tail++] = index;
+    }
+    while (head < tail) {
+      int index = queue[head++];
+      GamePiece node = nodes.get(index);
+      for (int dir = 0; dir < 4; dir++) {
+        int next = connectedIndex(node, dir);
+        if (next != -1 && stationDist[next] == -1) {
+          claim(next, nearestStation[index], stationDist[index] + 1);
+          queue[tail++] = next;
+        }
+      }
+    }
   }
 
-  // turn the power off for all nodes
-  void resetNodesPowered() {
-    for (GamePiece node : nodes) {
-      node.powered = false;
+  // make room for the power fields, if there isn't any yet, with no tile powered
+  void allocatePower() {
+    int size = nodes.size();
+    if (queue == null || queue.length != size) {
+      stationDist = new int[size];
+      nearestStation = new int[size];
+      queue = new int[size];
+      region = new int[size];
+      regionStamp = new int[size];
+      coverage = new int[stations.size()];
+      Arrays.fill(stationDist, -1);
+      Arrays.fill(nearestStation, -1);
     }
   }
 
-  // power all unpowered tiles connected to the given node argument
-  void updatePowerStatus(GamePiece node) {
-    node.powered = true;
-    ArrayList<GamePiece> neighbors = getConnectedNeighbors(node);
-    for (GamePiece neighbor : neighbors) {
-      if (!neighbor.powered) {
-        updatePowerStatus(neighbor);
+  // update the power for the first regionSize tiles of region only. this is
+  // only correct if region is closed under the wiring (see collectRegion),
+  // since then no station outside of it can reach a tile inside of it
+  void updatePower(int regionSize) {
+    for (int i = 0; i < regionSize; i++) {
+      int index = region[i];
+      if (stationDist[index] != -1) {
+        coverage[nearestStation[index]] -= 1;
+      }
+      stationDist[index] = -1;
+      nearestStation[index] = -1;
+      nodes.get(index).powered = false;
+    }
+
+    int head = 0;
+    int tail = 0;
+    for (int s = 0; s < stations.size(); s++) {
+      int index = indexOf(stations.get(s));
+      if (regionStamp[index] == regionEpoch) {
+        claim(index, s, 0);
+        queue[tail++] = index;
       }
     }
+    while (head < tail) {
+      int index = queue[head++];
+      GamePiece node = nodes.get(index);
+      for (int dir = 0; dir < 4; dir++) {
+        int next = connectedIndex(node, dir);
+        if (next != -1 && stationDist[next] == -1 && regionStamp[next] == regionEpoch) {
+          claim(next, nearestStation[index], stationDist[index] + 1);
+          queue[tail++] = next;
+        }
+      }
+    }
+  }
+
+  // collect every tile connected to one of the first seedCount seeds, with the
+  // wiring as it is now, into region and return how many there are.
+  // if every tile whose wires are about to change is a seed together with its
+  // neighbors, then the region stays closed under the new wiring as well:
+  // an unchanged connection can't leave it, and a new connection joins two seeds
+  int collectRegion(int[] seeds, int seedCount) {
+    regionEpoch += 1;
+    int size = 0;
+    for (int i = 0; i < seedCount; i++) {
+      int seed = seeds[i];
+      if (regionStamp[seed] == regionEpoch) {
+        continue;
+      }
+      regionStamp[seed] = regionEpoch;
+      region[size++] = seed;
+      // region doubles as the worklist of the flood
+      int head = size - 1;
+      while (head < size) {
+        GamePiece node = nodes.get(region[head++]);
+        for (int dir = 0; dir < 4; dir++) {
+          int next = connectedIndex(node, dir);
+          if (next != -1 && regionStamp[next] != regionEpoch) {
+            regionStamp[next] = regionEpoch;
+            region[size++] = next;
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  // power the tile at the given index on behalf of the given station
+  void claim(int index, int station, int dist) {
+    nodes.get(index).powered = true;
+    stationDist[index] = dist;
+    nearestStation[index] = station;
+    coverage[station] += 1;
+  }
+
+  // turn the power off for all nodes
+  void resetNodesPowered() {
+    for (GamePiece node : nodes) {
+      node.powered = false;
+    }
   }
 
   // find the longest path between two connected nodes on the board
@@ -443,31 +723,53 @@ class LightEmAll extends World {
   // all neighbors that are connected to the argument node
   ArrayList<GamePiece> getConnectedNeighbors(GamePiece node) {
     ArrayList<GamePiece> neighbors = new ArrayList<>();
-    if (node.top && 0 < node.row) {
-      GamePiece topNeighbor = board.get(node.row - 1).get(node.col);
-      if (topNeighbor.bottom) {
-        neighbors.add(topNeighbor);
+    for (int dir = 0; dir < 4; dir++) {
+      int next = connectedIndex(node, dir);
+      if (next != -1) {
+        neighbors.add(nodes.get(next));
       }
     }
-    if (node.bottom && node.row < height - 1) {
-      GamePiece bottomNeighbor = board.get(node.row + 1).get(node.col);
-      if (bottomNeighbor.top) {
-        neighbors.add(bottomNeighbor);
-      }
+    return neighbors;
+  }
+
+  // the index of the given tile in nodes (row-major order)
+  int indexOf(GamePiece node) {
+    return node.row * width + node.col;
+  }
+
+  // the index of the tile next to the given tile in the given direction,
+  // or -1 if that would be off the board
+  int neighborIndex(int row, int col, int dir) {
+    return layout.neighbors[(row * width + col) * 4 + dir];
+  }
+
+  // the index of the tile that the given tile is connected to in the given
+  // direction, or -1 if there is no such tile or the wires don't line up
+  int connectedIndex(GamePiece node, int dir) {
+    if (!node.hasWire(dir)) {
+      return -1;
     }
-    if (node.left && 0 < node.col) {
-      GamePiece leftNeighbor = board.get(node.row).get(node.col - 1);
-      if (leftNeighbor.right) {
-        neighbors.add(leftNeighbor);
-      }
+    int index = layout.neighbors[indexOf(node) * 4 + dir];
+    if (index != -1 && nodes.get(index).hasWire(GamePiece.opposite(dir))) {
+      return index;
     }
-    if (node.right && node.col < width - 1) {
-      GamePiece rightNeighbor = board.get(node.row).get(node.col + 1);
-      if (rightNeighbor.left) {
-        neighbors.add(rightNeighbor);
-      }
+    return -1;
+  }
+
+  // the distance from the given tile to its nearest station as of the
+  // last power update, or -1 if it isn't a powered tile of this board
+  int distanceToStation(GamePiece node) {
+    int index = indexOf(node);
+    if (index < 0 || nodes.size() <= index || nodes.get(index) != node) {
+      return -1;
     }
-    return neighbors;
+    return stationDist[index];
+  }
+
+  // how many tiles the given station was the nearest station for
+  // as of the last power update
+  int coverage(int station) {
+    return coverage[station];
   }
 
   // find the representative node
@@ -490,6 +792,7 @@ class LightEmAll extends World {
     for (GamePiece tile : nodes) {
       tile.rotateRandom();
     }
+    powerStale = true;
   }
 
   // draws the pieces correctly on the board
@@ -505,18 +808,22 @@ class LightEmAll extends World {
 
   // creates a gradient effect with the color
   Color color(GamePiece node) {
-    GamePiece powerStation = board.get(powerRow).get(powerCol);
+    return gradient(distanceToStation(node), radius);
+  }
 
-    int distToPower = bfs(node, powerStation);
+  // the wire color of a tile at the given distance from its nearest station
+  static Color gradient(int distToPower, int radius) {
+    return new Color(gradientRed(distToPower, radius), 100, 100);
+  }
+
+  // the red component of the gradient, which is all that varies
+  static int gradientRed(int distToPower, int radius) {
     // if the graph is disconnected
     if (distToPower == -1) {
-      distToPower = 0;
-    }
-    else {
-      distToPower = Math.min(radius, distToPower);
-      distToPower = 255 - 255 * distToPower / radius;
+      return 0;
     }
-    return new Color(distToPower, 100, 100);
+    distToPower = Math.min(radius, distToPower);
+    return 255 - 255 * distToPower / radius;
   }
 
   // initialize the layout for an empty world scene
@@ -530,8 +837,13 @@ class LightEmAll extends World {
     return world;
   }
 
-  // checks if all the nodes are powered
+  // checks if all the nodes are powered. while a wave is still spreading, or
+  // before a pending full update, the powered flags lag behind the wiring, so
+  // the bitsets answer instead, which is cheaper than updating the power
   boolean allPowered() {
+    if (bitboard != null && (powerStale || wave != null && wave.animating())) {
+      return bitboard.powersAll(this);
+    }
     for (GamePiece node : nodes) {
       if (!node.powered) {
         return false;
@@ -547,16 +859,136 @@ class LightEmAll extends World {
   }
 
   // method that helps in the rotation of the tile by getting certain index
+  // (this bypasses the input queue, so the power fields need a full update afterwards)
   void rotateTile(int colIndex, int rowIndex) {
     GamePiece boardTile = board.get(rowIndex).get(colIndex);
     boardTile.rotate();
+    if (bitboard != null) {
+      bitboard.rewire(this, indexOf(boardTile));
+    }
+    if (wave != null && !powerStale) {
+      wave.restartAround(indexOf(boardTile));
+    }
+    else {
+      powerStale = true;
+    }
+  }
+
+  // apply all queued input and bring the power fields up to date
+  void processInput() {
+    input.drain(this);
+    if (versions != null) {
+      // a reader may be waiting on changes from batches nobody asked for
+      versions.serve(this);
+    }
+  }
+
+  // input is applied once per tick rather than once per event
+  // (or by the render pipeline as soon as it arrives, once that is started)
+  public void onTick() {
+    if (pipeline == null) {
+      processInput();
+      if (wave != null) {
+        wave.step();
+      }
+    }
+    else if (wave != null) {
+      pipeline.tick();
+    }
+  }
+
+  // draw the board by blitting tiles into one reusable image instead of
+  // building a tree of images for every tile on every frame
+  void useRasterBackend() {
+    raster = new RasterRenderer(width, height, tileSize);
+  }
+
+  // spread power out from the stations over the following ticks,
+  // the given number of tiles a tick, instead of all at once
+  void useWavefront(int tilesPerTick) {
+    allocatePower();
+    wave = new PowerWave(this, tilesPerTick);
+    powerStale = true;
+  }
+
+  // keep the wiring as bitsets as well, so a win can be told without
+  // waiting for the power fields to catch up
+  void useBitboardPower() {
+    bitboard = new BitboardPower(width, height);
+    bitboard.load(this);
+  }
+
+  // move all further input handling and drawing off of the event thread.
+  // from now on only the pipeline's thread may touch the board
+  void startRendering() {
+    pipeline = new RenderPipeline(this);
+    pipeline.start();
+  }
+
+  // an immutable copy of the board as it is now
+  BoardSnapshot snapshot() {
+    version += 1;
+    return new BoardSnapshot(this, version);
+  }
+
+  // start publishing changes to the board for spectators
+  // (from the thread that applies input, like processInput)
+  void startFeed() {
+    processInput();
+    if (stationDist == null) {
+      updatePower();
+    }
+    feed = new ChangeFeed(this);
+  }
+
+  // start publishing versions of the board for other threads to read
+  // (from the thread that applies input, like processInput)
+  void startVersioning() {
+    processInput();
+    if (stationDist == null) {
+      updatePower();
+    }
+    versions = new VersionedBoard(this);
+  }
+
+  // publish the changes from a batch of input, given every tile whose wires
+  // or power it may have changed, to whatever is following the board
+  void publish(int[] tiles, int count) {
+    if (feed != null) {
+      feed.publish(this, tiles, count);
+    }
+    if (versions != null) {
+      versions.publish(this, tiles, count);
+    }
+  }
+
+  // publish the changes from a batch of input that may have changed any tile
+  void publishAll() {
+    if (feed != null) {
+      feed.publishAll(this);
+    }
+    if (versions != null) {
+      versions.publishAll(this);
+    }
   }
 
   // method to display the gameOver screen if all Powered is true
+  // (with a render pipeline, this just hands over the last finished frame)
   public WorldScene makeScene() {
-    WorldScene world = initWorld();
-    drawGamePieces(world);
-    updatePower();
+    if (pipeline != null) {
+      return pipeline.frame();
+    }
+    processInput();
+    WorldScene world;
+    if (raster != null) {
+      world = new WorldScene(width * tileSize, height * tileSize);
+      raster.paint(this);
+      raster.place(world);
+    }
+    else {
+      world = initWorld();
+      drawGamePieces(world);
+    }
     if (allPowered()) {
       gameOver(world);
     }
@@ -564,51 +996,297 @@ class LightEmAll extends World {
   }
 
   // method to update game based off mouse click
+  // (the rotation is queued until the next tick)
   public void onMouseClicked(Posn posn, String key) {
     int colIndex = (posn.x - (posn.x % 50)) / 50;
     int rowIndex = (posn.y - (posn.y % 50)) / 50;
-    rotateTile(colIndex, rowIndex);
+    if (0 <= colIndex && colIndex < width && 0 <= rowIndex && rowIndex < height) {
+      input.rotate(rowIndex * width + colIndex);
+      if (pipeline != null) {
+        pipeline.wake();
+      }
+    }
   }
 
   // method to update game based when a player uses the arrow keys
+  // (the key is queued until the next tick)
   public void onKeyEvent(String key) {
-    GamePiece powerStation = board.get(powerRow).get(powerCol);
-    if (key.equals("up")) {
-      if (powerStation.top && (0 < height)) {
-        GamePiece topNeighbor = board.get(powerRow - 1).get(powerCol);
-        if (topNeighbor.bottom) {
-          this.powerRow -= 1;
-        }
+    input.key(key);
+    if (pipeline != null) {
+      pipeline.wake();
+    }
+  }
+
+  // apply an arrow key, or select which station to move with the number keys
+  void applyKey(String key) {
+    int station = activeAfter(activeStation, key);
+    if (station != activeStation) {
+      activeStation = station;
+      powerRow = stations.get(station).row;
+      powerCol = stations.get(station).col;
+    }
+    else {
+      moveStation(activeStation, key);
+    }
+  }
+
+  // move the given station one tile in the direction of the given arrow key,
+  // if its wires connect to that tile and no other station is already there
+  // (this does not update the power, so it should go through the input queue)
+  boolean moveStation(int station, String key) {
+    int dir = direction(key);
+    if (dir == -1) {
+      return false;
+    }
+    GamePiece from = stations.get(station);
+    int next = connectedIndex(from, dir);
+    if (next == -1 || nodes.get(next).powerStation) {
+      return false;
+    }
+    GamePiece to = nodes.get(next);
+    // Update the power station's status
+    from.powerStation = false;
+    to.powerStation = true;
+    stations.set(station, to);
+    if (station == activeStation) {
+      powerRow = to.row;
+      powerCol = to.col;
+    }
+    moves += 1;
+    return true;
+  }
+
+  // the index of the station that is active after the given key is pressed
+  int activeAfter(int active, String key) {
+    if (key.length() == 1 && Character.isDigit(key.charAt(0))) {
+      int station = key.charAt(0) - '1';
+      if (0 <= station && station < stations.size()) {
+        return station;
       }
     }
+    return active;
+  }
+
+  // the wire direction for the given arrow key, or -1 if it isn't one
+  int direction(String key) {
+    if (key.equals("up")) {
+      return GamePiece.TOP;
+    }
     else if (key.equals("down")) {
-      if (powerStation.bottom && (powerRow < height - 1)) {
-        GamePiece bottomNeighbor = board.get(powerRow + 1).get(powerCol);
-        if (bottomNeighbor.top) {
-          this.powerRow += 1;
-        }
-      }
+      return GamePiece.BOTTOM;
     }
     else if (key.equals("left")) {
-      if (powerStation.left && (0 < powerCol)) {
-        GamePiece leftNeighbor = board.get(powerRow).get(powerCol - 1);
-        if (leftNeighbor.right) {
-          this.powerCol -= 1;
+      return GamePiece.LEFT;
+    }
+    else if (key.equals("right")) {
+      return GamePiece.RIGHT;
+    }
+    return -1;
+  }
+}
+
+// a click or key press waiting in an InputQueue
+class InputEvent {
+  // the index of the tile to rotate, or -1 if this is a key press
+  int tile;
+  // the station an arrow key moves, or -1 for the active station
+  int station;
+  String key;
+
+  InputEvent(int tile, int station, String key) {
+    this.tile = tile;
+    this.station = station;
+    this.key = key;
+  }
+}
+
+// clicks and key presses waiting to be applied to a game, so that a burst of
+// input costs one power update per tick rather than one per event.
+// rotations of the same tile are collapsed modulo 4 (four clicks do nothing),
+// but never across a key press, since moving a station depends on the wiring.
+// events may be queued from any thread, but only one thread may drain them
+class InputQueue {
+  ConcurrentLinkedQueue<InputEvent> pending;
+  // net clockwise turns of each tile in the current run of rotations,
+  // and the tiles that have been turned in it
+  int[] turns;
+  boolean[] turned;
+  int[] touched;
+  int touchedCount;
+  // the tiles whose old components need their power recomputed, each once:
+  // a tile is already a seed of this batch if its stamp is the current epoch
+  int[] seeds;
+  int seedCount;
+  int[] seedStamp;
+  int seedEpoch;
+
+  InputQueue() {
+    this.pending = new ConcurrentLinkedQueue<>();
+  }
+
+  // queue a clockwise rotation of the tile at the given index
+  void rotate(int index) {
+    pending.add(new InputEvent(index, -1, null));
+  }
+
+  // queue a key press
+  void key(String key) {
+    pending.add(new InputEvent(-1, -1, key));
+  }
+
+  // queue moving the given station in the direction of the given arrow key,
+  // whichever station is active
+  void move(int station, String key) {
+    pending.add(new InputEvent(-1, station, key));
+  }
+
+  // is there any input waiting?
+  boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  // apply all pending input to the given game, followed by one power update
+  // restricted to the components of the board the input could have changed
+  void drain(LightEmAll game) {
+    if (pending.isEmpty() && !game.powerStale) {
+      return;
+    }
+    ArrayList<InputEvent> batch = new ArrayList<>();
+    InputEvent queued = pending.poll();
+    while (queued != null) {
+      batch.add(queued);
+      queued = pending.poll();
+    }
+    int size = game.nodes.size();
+    if (turns == null || turns.length != size) {
+      turns = new int[size];
+      turned = new boolean[size];
+      touched = new int[size];
+      seeds = new int[size];
+      seedStamp = new int[size];
+    }
+
+    if (game.powerStale) {
+      apply(game, batch);
+      if (game.wave != null) {
+        game.powerStale = false;
+        game.wave.restartAll();
+        game.publishAll();
+        return;
+      }
+      game.updatePower();
+      game.publishAll();
+      return;
+    }
+
+    // find what will change before changing anything, so the flood below
+    // sees the old wiring
+    seedCount = 0;
+    seedEpoch += 1;
+    int active = game.activeStation;
+    for (InputEvent event : batch) {
+      if (event.key == null) {
+        turn(event.tile);
+      }
+      else if (event.station != -1) {
+        seedTurned(game, false);
+        seedStation(game, event.station);
+      }
+      else {
+        seedTurned(game, false);
+        int next = game.activeAfter(active, event.key);
+        if (next == active && game.direction(event.key) != -1) {
+          seedStation(game, active);
         }
+        active = next;
       }
     }
-    else if (key.equals("right")) {
-      if (powerStation.right && (powerCol < height - 1)) {
-        GamePiece rightNeighbor = board.get(powerRow).get(powerCol + 1);
-        if (rightNeighbor.left) {
-          this.powerCol += 1;
+    seedTurned(game, false);
+    if (game.wave != null) {
+      // the wave finds the region itself, over the following ticks
+      apply(game, batch);
+      game.wave.restart(seeds, seedCount);
+      game.publish(seeds, seedCount);
+      return;
+    }
+    int regionSize = game.collectRegion(seeds, seedCount);
+
+    apply(game, batch);
+    game.updatePower(regionSize);
+    game.publish(game.region, regionSize);
+  }
+
+  // apply the given input to the game without updating the power
+  void apply(LightEmAll game, ArrayList<InputEvent> batch) {
+    for (InputEvent event : batch) {
+      if (event.key == null) {
+        turn(event.tile);
+        game.moves += 1;
+      }
+      else if (event.station != -1) {
+        seedTurned(game, true);
+        game.moveStation(event.station, event.key);
+      }
+      else {
+        seedTurned(game, true);
+        game.applyKey(event.key);
+      }
+    }
+    seedTurned(game, true);
+  }
+
+  // add one clockwise turn of the given tile to the current run
+  void turn(int index) {
+    if (!turned[index]) {
+      turned[index] = true;
+      touched[touchedCount++] = index;
+    }
+    turns[index] = (turns[index] + 1) % 4;
+  }
+
+  // end the current run of rotations: seed every tile that ends up turned,
+  // along with its neighbors, and rotate it if rotate is true
+  void seedTurned(LightEmAll game, boolean rotate) {
+    for (int i = 0; i < touchedCount; i++) {
+      int index = touched[i];
+      if (turns[index] != 0) {
+        GamePiece tile = game.nodes.get(index);
+        if (rotate) {
+          for (int k = 0; k < turns[index]; k++) {
+            tile.rotate();
+          }
+          if (game.bitboard != null) {
+            game.bitboard.rewire(game, index);
+          }
+        }
+        else {
+          addSeed(index);
+          for (int dir = 0; dir < 4; dir++) {
+            int next = game.neighborIndex(tile.row, tile.col, dir);
+            if (next != -1) {
+              addSeed(next);
+            }
+          }
         }
       }
+      turns[index] = 0;
+      turned[index] = false;
+    }
+    touchedCount = 0;
+  }
+
+  // seed the tile the given station starts the batch on. it can only move
+  // within the region, so its whole component gets new distances
+  void seedStation(LightEmAll game, int station) {
+    addSeed(game.indexOf(game.stations.get(station)));
+  }
+
+  // add the tile at the given index to the seeds, unless it already is one
+  void addSeed(int index) {
+    if (seedStamp[index] != seedEpoch) {
+      seedStamp[index] = seedEpoch;
+      seeds[seedCount++] = index;
     }
-    // Update the power station's status
-    powerStation.powerStation = false;
-    GamePiece newPowerStation = board.get(powerRow).get(powerCol);
-    newPowerStation.powerStation = true;
   }
 }
 
@@ -885,13 +1563,118 @@ class ExamplesLightEmAll {
 
     // rotating gp1 once
     this.lea.onMouseClicked(new Posn(0, 0), "LeftButton");
-    // rotating gp2 twice
+    // rotating gp4 twice
     this.lea.onMouseClicked(new Posn(0, 70), "LeftButton");
     this.lea.onMouseClicked(new Posn(0, 70), "LeftButton");
 
+    // the clicks wait in the queue until the next tick
+    t.checkExpect(this.lea.nodes, nodes1);
+    this.lea.onTick();
+
+    // the tick also recomputes power, and the station's only wire now
+    // points off the board
+    for (GamePiece gp : nodes2) {
+      gp.powered = gp.powerStation;
+    }
     t.checkExpect(this.lea.nodes, nodes2);
   }
 
+  // tests that queued rotations of the same tile are collapsed
+  void testInputCoalescing(Tester t) {
+    init();
+    GamePiece corner = new GamePiece(0, 0, gp1.left, gp1.right, gp1.top, gp1.bottom);
+    // four clicks cancel out
+    for (int i = 0; i < 4; i++) {
+      this.lea.onMouseClicked(new Posn(10, 10), "LeftButton");
+    }
+    this.lea.onTick();
+    t.checkExpect(this.lea.nodes.get(0).left, corner.left);
+    t.checkExpect(this.lea.nodes.get(0).bottom, corner.bottom);
+    // five clicks are a single rotation
+    for (int i = 0; i < 5; i++) {
+      this.lea.onMouseClicked(new Posn(10, 10), "LeftButton");
+    }
+    this.lea.onTick();
+    corner.rotate();
+    t.checkExpect(this.lea.nodes.get(0).left, corner.left);
+    t.checkExpect(this.lea.nodes.get(0).top, corner.top);
+    t.checkExpect(this.lea.input.isEmpty(), true);
+  }
+
+  // tests converting wires to and from masks
+  void testMask(Tester t) {
+    init();
+    t.checkExpect(gp1.mask(), (1 << GamePiece.LEFT) | (1 << GamePiece.BOTTOM));
+    GamePiece copy = new GamePiece(0, 0);
+    copy.setMask(gp5.mask());
+    t.checkExpect(copy.left && copy.right && copy.top && !copy.bottom, true);
+  }
+
+  // tests that the restricted power update after a batch of input
+  // matches a full update of the same board
+  void testIncrementalPower(Tester t) {
+    LightEmAll game = new LightEmAll(8, 6, 3, new Random(11));
+    Random clicks = new Random(5);
+    for (int batch = 0; batch < 20; batch++) {
+      for (int i = 0; i < 6; i++) {
+        game.onMouseClicked(new Posn(clicks.nextInt(8 * 50), clicks.nextInt(6 * 50)), "LeftButton");
+      }
+      game.onKeyEvent(new String[] {"up", "down", "left", "right", "2"}[clicks.nextInt(5)]);
+      game.onTick();
+      int[] dist = game.stationDist.clone();
+      int[] coverage = game.coverage.clone();
+      game.updatePower();
+      t.checkExpect(dist, game.stationDist);
+      t.checkExpect(coverage, game.coverage);
+    }
+  }
+
+  // tests power propagation from several stations at once
+  void testUpdatePowerMultipleStations(Tester t) {
+    LightEmAll multi = new LightEmAll(4, 4, 3, new Random(7));
+    t.checkExpect(multi.stations.size(), 3);
+    // the solved board is fully powered before it is scrambled
+    t.checkExpect(multi.allPowered(), true);
+    t.checkExpect(multi.coverage(0) + multi.coverage(1) + multi.coverage(2), 16);
+
+    multi.updatePower();
+    int covered = 0;
+    for (GamePiece node : multi.nodes) {
+      // the distance field agrees with the nearest station found by bfs
+      int nearest = -1;
+      for (GamePiece station : multi.stations) {
+        int dist = multi.bfs(node, station);
+        if (dist != -1 && (nearest == -1 || dist < nearest)) {
+          nearest = dist;
+        }
+      }
+      t.checkExpect(multi.distanceToStation(node), nearest);
+      t.checkExpect(node.powered, nearest != -1);
+      if (node.powered) {
+        covered += 1;
+      }
+    }
+    t.checkExpect(multi.coverage(0) + multi.coverage(1) + multi.coverage(2), covered);
+    for (GamePiece station : multi.stations) {
+      t.checkExpect(multi.distanceToStation(station), 0);
+    }
+  }
+
+  // tests choosing which station the arrow keys move
+  void testSelectStation(Tester t) {
+    LightEmAll multi = new LightEmAll(4, 4, 2, new Random(7));
+    GamePiece second = multi.stations.get(1);
+    multi.onKeyEvent("2");
+    multi.onTick();
+    t.checkExpect(multi.activeStation, 1);
+    t.checkExpect(multi.powerRow, second.row);
+    t.checkExpect(multi.powerCol, second.col);
+    // keys for stations that don't exist are ignored
+    multi.onKeyEvent("9");
+    multi.onTick();
+    t.checkExpect(multi.activeStation, 1);
+  }
+
   // test the on key event method
   void testOnKeyEvent(Tester t) {
     init();
@@ -905,6 +1688,7 @@ class ExamplesLightEmAll {
 
     // move the power station to the left
     this.lea.onKeyEvent("left");
+    this.lea.onTick();
 
     // ba boom. the power station has been moved one tile to the left
     t.checkExpect(lea.powerCol, 0);
@@ -989,6 +1773,7 @@ class ExamplesLightEmAll {
 
   // test the color method
   void testColor(Tester t) {
+    init();
     t.checkExpect(lea.color(gp1), new Color(0, 100, 100));
     t.checkExpect(lea.color(gp2), new Color(0, 100, 100));
     t.checkExpect(lea.color(gp3),  new Color(0, 100, 100));
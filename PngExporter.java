@@ -0,0 +1,405 @@
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import tester.*;
+
+// a board to export, tile by tile. implementations must allow reads from
+// several threads at once
+interface TileSource {
+  // the size of the board in tiles
+  int width();
+
+  int height();
+
+  // the wire mask of the tile at the given position
+  int mask(int row, int col);
+
+  // whether there is a station on the tile at the given position
+  boolean station(int row, int col);
+
+  // the red component of the gradient color of the tile's wires
+  int red(int row, int col);
+}
+
+// the tiles of a game, whose power fields must be up to date
+class GameTileSource implements TileSource {
+  LightEmAll game;
+
+  GameTileSource(LightEmAll game) {
+    this.game = game;
+  }
+
+  public int width() {
+    return game.width;
+  }
+
+  public int height() {
+    return game.height;
+  }
+
+  public int mask(int row, int col) {
+    return game.nodes.get(row * game.width + col).mask();
+  }
+
+  public boolean station(int row, int col) {
+    return game.nodes.get(row * game.width + col).powerStation;
+  }
+
+  public int red(int row, int col) {
+    return LightEmAll.gradientRed(game.stationDist[row * game.width + col], game.radius);
+  }
+}
+
+// a generated board far too large to hold in memory, whose tiles are worked out
+// from their position alone. it is a binary tree maze: each tile is wired to the
+// tile above it or the one to its left, picked by a hash of its position (the
+// top row always goes left and the left column always goes up), which makes a
+// spanning tree rooted at the station in the top left corner. unless solved,
+// every tile is then turned a hashed number of times
+class GeneratedTileSource implements TileSource {
+  int width;
+  int height;
+  long seed;
+  boolean solved;
+
+  GeneratedTileSource(int width, int height, long seed, boolean solved) {
+    this.width = width;
+    this.height = height;
+    this.seed = seed;
+    this.solved = solved;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  // a well mixed hash of the given position and salt
+  long hash(int row, int col, int salt) {
+    long z = seed + ((long) row << 32) + col * 0x9E3779B97F4A7C15L + salt;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  // does the tile at the given position wire up rather than left?
+  boolean goesUp(int row, int col) {
+    if (row == 0) {
+      return false;
+    }
+    return col == 0 || (hash(row, col, 0) & 1) == 0;
+  }
+
+  public int mask(int row, int col) {
+    int mask = 0;
+    if (row != 0 || col != 0) {
+      mask |= 1 << (goesUp(row, col) ? GamePiece.TOP : GamePiece.LEFT);
+    }
+    if (row + 1 < height && goesUp(row + 1, col)) {
+      mask |= 1 << GamePiece.BOTTOM;
+    }
+    if (col + 1 < width && !goesUp(row, col + 1)) {
+      mask |= 1 << GamePiece.RIGHT;
+    }
+    if (!solved) {
+      for (int turns = (int) (hash(row, col, 1) & 3); 0 < turns; turns--) {
+        mask = GamePiece.rotated(mask);
+      }
+    }
+    return mask;
+  }
+
+  public boolean station(int row, int col) {
+    return row == 0 && col == 0;
+  }
+
+  // a solved board is shaded by the tile's Manhattan distance from the station,
+  // row plus column, since the real distance along the wires would need the whole board
+  public int red(int row, int col) {
+    if (!solved) {
+      return 0;
+    }
+    return LightEmAll.gradientRed(row + col, Math.max(1, (width + height) / 4));
+  }
+}
+
+// writes a board to a PNG in horizontal strips, so it never needs the whole
+// image in memory. strips are rendered, filtered and deflated in parallel, each
+// as its own raw deflate stream ended with a sync flush, and written in order
+// as one zlib stream; the checksums of the strips are combined at the end.
+// peak memory is a bounded number of strips in flight, each tileSize pixels
+// tall per tile row and as wide as the board
+class PngExporter {
+  static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+  // the largest IDAT chunk written
+  static final int CHUNK = 1 << 20;
+  static final int ADLER_BASE = 65521;
+
+  int tileSize;
+  int wireWidth;
+  // how many rows of tiles go in a strip
+  int stripRows;
+  int threads;
+  // the rasterized tiles, as in RasterRenderer
+  byte[][] tiles;
+
+  PngExporter(int tileSize, int stripRows, int threads) {
+    this.tileSize = tileSize;
+    this.wireWidth = Math.max(1, tileSize / 10);
+    this.stripRows = stripRows;
+    this.threads = threads;
+    this.tiles = new byte[32][];
+    for (int key = 0; key < 32; key++) {
+      tiles[key] = RasterRenderer.rasterize(key & 15, 16 <= key, tileSize, wireWidth);
+    }
+  }
+
+  PngExporter(int tileSize) {
+    this(tileSize, 4, Runtime.getRuntime().availableProcessors());
+  }
+
+  // a strip of the image, deflated
+  static class Strip {
+    byte[] deflated;
+    int adler;
+    long rawLength;
+
+    Strip(byte[] deflated, int adler, long rawLength) {
+      this.deflated = deflated;
+      this.adler = adler;
+      this.rawLength = rawLength;
+    }
+  }
+
+  // write the given board to the given stream as a PNG
+  void export(TileSource source, OutputStream out) throws IOException {
+    long pixelWidth = (long) source.width() * tileSize;
+    long pixelHeight = (long) source.height() * tileSize;
+    if (Integer.MAX_VALUE < pixelWidth * 3 + 1 || Integer.MAX_VALUE < pixelHeight) {
+      throw new IllegalArgumentException("A " + pixelWidth + "x" + pixelHeight
+          + " image is too large to export");
+    }
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    data.write(SIGNATURE);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream ihdr = new DataOutputStream(header);
+    ihdr.writeInt((int) pixelWidth);
+    ihdr.writeInt((int) pixelHeight);
+    // 8 bit RGB, default compression and filtering, not interlaced
+    ihdr.write(new byte[] {8, 2, 0, 0, 0});
+    writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+    // the zlib header: deflate with a 32K window, no preset dictionary
+    writeChunk(data, "IDAT", new byte[] {0x78, 0x01}, 2);
+    int strips = (source.height() + stripRows - 1) / stripRows;
+    ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, "light-em-png");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ArrayDeque<Future<Strip>> inFlight = new ArrayDeque<>();
+    int adler = 1;
+    try {
+      int next = 0;
+      for (int written = 0; written < strips; written++) {
+        while (next < strips && inFlight.size() < 2 * threads) {
+          int strip = next++;
+          inFlight.add(pool.submit(() -> encode(source, strip, strip == strips - 1)));
+        }
+        Strip strip = inFlight.remove().get();
+        for (int offset = 0; offset < strip.deflated.length; offset += CHUNK) {
+          byte[] chunk = Arrays.copyOfRange(strip.deflated, offset,
+              Math.min(strip.deflated.length, offset + CHUNK));
+          writeChunk(data, "IDAT", chunk, chunk.length);
+        }
+        adler = adler32Combine(adler, strip.adler, strip.rawLength);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted exporting a board");
+    }
+    catch (ExecutionException e) {
+      throw new IOException("Failed to encode a strip", e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    writeChunk(data, "IDAT", new byte[] {(byte) (adler >>> 24), (byte) (adler >>> 16),
+        (byte) (adler >>> 8), (byte) adler}, 4);
+    writeChunk(data, "IEND", new byte[0], 0);
+    data.flush();
+  }
+
+  // render, filter and deflate the given strip of the given board
+  Strip encode(TileSource source, int strip, boolean last) {
+    int firstRow = strip * stripRows;
+    int rows = Math.min(stripRows, source.height() - firstRow);
+    int stride = 1 + source.width() * tileSize * 3;
+    byte[] raw = new byte[rows * tileSize * stride];
+    for (int r = 0; r < rows; r++) {
+      for (int col = 0; col < source.width(); col++) {
+        int row = firstRow + r;
+        byte[] tile = tiles[source.mask(row, col) | (source.station(row, col) ? 16 : 0)];
+        int wire = RasterRenderer.wireRgb(source.red(row, col));
+        for (int y = 0; y < tileSize; y++) {
+          // each scanline starts with filter type 0, which the array already holds
+          int offset = (r * tileSize + y) * stride + 1 + col * tileSize * 3;
+          for (int x = 0; x < tileSize; x++) {
+            int rgb = RasterRenderer.rgb(tile[y * tileSize + x], wire);
+            raw[offset++] = (byte) (rgb >>> 16);
+            raw[offset++] = (byte) (rgb >>> 8);
+            raw[offset++] = (byte) rgb;
+          }
+        }
+      }
+    }
+    Adler32 adler = new Adler32();
+    adler.update(raw);
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(raw);
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 8 + 64);
+    byte[] buffer = new byte[1 << 16];
+    if (last) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflated.write(buffer, 0, deflater.deflate(buffer));
+      }
+    }
+    else {
+      // end on a byte boundary without marking the stream final,
+      // so the next strip's stream can follow on directly
+      int length = buffer.length;
+      while (length == buffer.length) {
+        length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        deflated.write(buffer, 0, length);
+      }
+    }
+    deflater.end();
+    return new Strip(deflated.toByteArray(), (int) adler.getValue(), raw.length);
+  }
+
+  // write one PNG chunk of the given type holding the first length bytes of data
+  static void writeChunk(DataOutputStream out, String type, byte[] data, int length)
+      throws IOException {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, 0, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  // the Adler-32 checksum of two pieces of data one after the other, from the
+  // checksum of each and the length of the second (as zlib's adler32_combine)
+  static int adler32Combine(int first, int second, long secondLength) {
+    long rem = secondLength % ADLER_BASE;
+    long sum1 = first & 0xFFFF;
+    long sum2 = (rem * sum1) % ADLER_BASE;
+    sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+    sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+    if (ADLER_BASE <= sum1) {
+      sum1 -= ADLER_BASE;
+    }
+    if (ADLER_BASE <= sum1) {
+      sum1 -= ADLER_BASE;
+    }
+    if (ADLER_BASE << 1 <= sum2) {
+      sum2 -= ADLER_BASE << 1;
+    }
+    if (ADLER_BASE <= sum2) {
+      sum2 -= ADLER_BASE;
+    }
+    return (int) (sum1 | (sum2 << 16));
+  }
+
+  // usage: PngExporter file [width] [height] [tile size] [seed] [solved]
+  // exports a generated board of the given size in tiles
+  public static void main(String[] args) throws IOException {
+    File file = new File(args[0]);
+    int width = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int height = args.length > 2 ? Integer.parseInt(args[2]) : width;
+    int tileSize = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    long seed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+    boolean solved = args.length > 5 && Boolean.parseBoolean(args[5]);
+    long start = System.nanoTime();
+    try (OutputStream out = new FileOutputStream(file)) {
+      new PngExporter(tileSize).export(new GeneratedTileSource(width, height, seed, solved), out);
+    }
+    System.out.printf("Exported %dx%d tiles to %s (%d bytes) in %.1fs%n", width, height, file,
+        file.length(), (System.nanoTime() - start) / 1e9);
+  }
+}
+
+// examples for exporting boards
+class ExamplesPngExporter {
+  // export the given board and read it back
+  BufferedImage roundTrip(PngExporter exporter, TileSource source) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.export(source, out);
+    return javax.imageio.ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  // tests that an exported game looks like the raster backend draws it
+  void testExportGame(Tester t) throws IOException {
+    LightEmAll game = new LightEmAll(5, 4, 2, new Random(9));
+    game.processInput();
+    RasterRenderer raster = new RasterRenderer(5, 4, 50);
+    raster.paint(game);
+    // one row of tiles per strip, so the strips have to be stitched together
+    BufferedImage image = roundTrip(new PngExporter(50, 1, 3), new GameTileSource(game));
+    t.checkExpect(image.getWidth(), 250);
+    t.checkExpect(image.getHeight(), 200);
+    boolean same = true;
+    for (int y = 0; y < 200; y++) {
+      for (int x = 0; x < 250; x++) {
+        same &= (image.getRGB(x, y) & 0xFFFFFF) == (raster.placed.getPixel(x, y).getRGB() & 0xFFFFFF);
+      }
+    }
+    t.checkExpect(same, true);
+  }
+
+  // tests that a generated board is a solved spanning tree
+  void testGeneratedBoard(Tester t) {
+    GeneratedTileSource source = new GeneratedTileSource(30, 20, 5, true);
+    int[] masks = new int[600];
+    int ports = 0;
+    for (int row = 0; row < 20; row++) {
+      for (int col = 0; col < 30; col++) {
+        masks[row * 30 + col] = source.mask(row, col);
+        ports += Integer.bitCount(masks[row * 30 + col]);
+      }
+    }
+    LightEmAll game = new LightEmAll(30, 20, masks, new int[] {0}, 0, 10, 0);
+    game.processInput();
+    t.checkExpect(game.allPowered(), true);
+    t.checkExpect(ports, 2 * 599);
+    // scrambling only turns tiles
+    GeneratedTileSource scrambled = new GeneratedTileSource(30, 20, 5, false);
+    t.checkExpect(Integer.bitCount(scrambled.mask(7, 7)), Integer.bitCount(masks[7 * 30 + 7]));
+  }
+
+  // tests combining checksums
+  void testAdler32Combine(Tester t) {
+    byte[] first = "Light 'Em".getBytes();
+    byte[] second = " All".getBytes();
+    Adler32 a = new Adler32();
+    a.update(first);
+    Adler32 b = new Adler32();
+    b.update(second);
+    Adler32 both = new Adler32();
+    both.update(first);
+    both.update(second);
+    t.checkExpect(PngExporter.adler32Combine((int) a.getValue(), (int) b.getValue(),
+        second.length), (int) both.getValue());
+  }
+}
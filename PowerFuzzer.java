@@ -0,0 +1,727 @@
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// one step of a fuzz case
+class FuzzOp {
+  static final int CLICK = 0;
+  static final int KEY = 1;
+  static final int MOVE = 2;
+  static final int DIRECT = 3;
+  static final int TICK = 4;
+
+  int kind;
+  int row;
+  int col;
+  int station;
+  String key;
+
+  FuzzOp(int kind, int row, int col, int station, String key) {
+    this.kind = kind;
+    this.row = row;
+    this.col = col;
+    this.station = station;
+    this.key = key;
+  }
+
+  public String toString() {
+    if (kind == CLICK) {
+      return "click(" + row + ", " + col + ")";
+    }
+    else if (kind == KEY) {
+      return "key(\"" + key + "\")";
+    }
+    else if (kind == MOVE) {
+      return "move(" + station + ", \"" + key + "\")";
+    }
+    else if (kind == DIRECT) {
+      return "rotateTile(" + row + ", " + col + ")";
+    }
+    return "tick";
+  }
+}
+
+// a board and a sequence of input to play on it
+class FuzzCase {
+  int width;
+  int height;
+  int stations;
+  long boardSeed;
+  ArrayList<FuzzOp> ops;
+
+  FuzzCase(int width, int height, int stations, long boardSeed, ArrayList<FuzzOp> ops) {
+    this.width = width;
+    this.height = height;
+    this.stations = stations;
+    this.boardSeed = boardSeed;
+    this.ops = ops;
+  }
+
+  // a random case generated from the given seed. most boards are small, where
+  // bugs shrink well, but a quarter are large enough that the engine updates
+  // whole components and regions spanning many rows instead of a few tiles
+  static FuzzCase generate(long seed) {
+    Random rand = new Random(seed);
+    int limit = rand.nextInt(4) == 0 ? 40 : 9;
+    int width = 1 + rand.nextInt(limit);
+    int height = 1 + rand.nextInt(limit);
+    int stations = 1 + rand.nextInt(Math.min(4, width * height));
+    ArrayList<FuzzOp> ops = new ArrayList<>();
+    int steps = 1 + rand.nextInt(limit == 9 ? 60 : 200);
+    for (int i = 0; i < steps; i++) {
+      int roll = rand.nextInt(100);
+      if (roll < 55) {
+        ops.add(new FuzzOp(FuzzOp.CLICK, rand.nextInt(height), rand.nextInt(width), 0, null));
+      }
+      else if (roll < 70) {
+        String[] keys = {"up", "down", "left", "right", "1", "2", "3", "4", "x"};
+        ops.add(new FuzzOp(FuzzOp.KEY, 0, 0, 0, keys[rand.nextInt(keys.length)]));
+      }
+      else if (roll < 78) {
+        ops.add(new FuzzOp(FuzzOp.MOVE, 0, 0, rand.nextInt(stations),
+            LightEmProtocol.KEYS[rand.nextInt(4)]));
+      }
+      else if (roll < 80) {
+        ops.add(new FuzzOp(FuzzOp.DIRECT, rand.nextInt(height), rand.nextInt(width), 0, null));
+      }
+      else {
+        ops.add(new FuzzOp(FuzzOp.TICK, 0, 0, 0, null));
+      }
+    }
+    ops.add(new FuzzOp(FuzzOp.TICK, 0, 0, 0, null));
+    return new FuzzCase(width, height, stations, rand.nextLong(), ops);
+  }
+
+  // this case with only the ops in [from, to) removed
+  FuzzCase without(int from, int to) {
+    ArrayList<FuzzOp> kept = new ArrayList<>(ops.subList(0, from));
+    kept.addAll(ops.subList(to, ops.size()));
+    return new FuzzCase(width, height, stations, boardSeed, kept);
+  }
+
+  // this case on a board of the given size, dropping ops that fall off of it
+  FuzzCase resized(int width, int height, int stations) {
+    ArrayList<FuzzOp> kept = new ArrayList<>();
+    for (FuzzOp op : ops) {
+      if (op.row < height && op.col < width && op.station < stations) {
+        kept.add(op);
+      }
+    }
+    return new FuzzCase(width, height, stations, boardSeed, kept);
+  }
+
+  public String toString() {
+    return "new LightEmAll(" + width + ", " + height + ", " + stations
+        + ", new Random(" + boardSeed + "L)) then " + ops;
+  }
+}
+
+// the rules of the game as the original single-station version played them,
+// ported onto a board of its own: power floods recursively from each station
+// with updatePowerStatus, distances come from the original bfs, the longest path
+// from the recursive dfs and the spanning tree from the list-based Kruskal.
+// it is slow, but it is what every faster engine must agree with
+class ReferenceEngine {
+  int width;
+  int height;
+  ArrayList<ArrayList<GamePiece>> board;
+  ArrayList<GamePiece> nodes;
+  int[] stations;
+  int active;
+
+  // a copy of the given game's board
+  ReferenceEngine(LightEmAll game) {
+    this.width = game.width;
+    this.height = game.height;
+    this.board = new ArrayList<>();
+    this.nodes = new ArrayList<>();
+    for (int i = 0; i < height; i++) {
+      ArrayList<GamePiece> row = new ArrayList<>();
+      for (int j = 0; j < width; j++) {
+        GamePiece tile = game.board.get(i).get(j);
+        GamePiece copy = new GamePiece(i, j, tile.left, tile.right, tile.top, tile.bottom, null);
+        row.add(copy);
+        nodes.add(copy);
+      }
+      board.add(row);
+    }
+    this.stations = new int[game.stations.size()];
+    for (int s = 0; s < stations.length; s++) {
+      stations[s] = game.indexOf(game.stations.get(s));
+    }
+    this.active = game.activeStation;
+  }
+
+  // rotate the tile at the given index clockwise
+  void rotate(int index) {
+    nodes.get(index).rotate();
+  }
+
+  // the wire mask of the tile at the given index
+  int mask(int index) {
+    return nodes.get(index).mask();
+  }
+
+  // apply a key press: a number selects a station, an arrow moves the active one
+  void key(String key) {
+    if (key.length() == 1 && Character.isDigit(key.charAt(0))) {
+      int station = key.charAt(0) - '1';
+      if (0 <= station && station < stations.length) {
+        active = station;
+      }
+    }
+    else {
+      move(active, key);
+    }
+  }
+
+  // move the given station along its wire in the direction of the arrow key,
+  // unless another station is in the way
+  void move(int station, String key) {
+    GamePiece node = nodes.get(stations[station]);
+    int row = node.row;
+    int col = node.col;
+    if (key.equals("up") && node.top) {
+      row -= 1;
+    }
+    else if (key.equals("down") && node.bottom) {
+      row += 1;
+    }
+    else if (key.equals("left") && node.left) {
+      col -= 1;
+    }
+    else if (key.equals("right") && node.right) {
+      col += 1;
+    }
+    else {
+      return;
+    }
+    if (row < 0 || height <= row || col < 0 || width <= col
+        || !getConnectedNeighbors(node).contains(board.get(row).get(col))) {
+      return;
+    }
+    int next = row * width + col;
+    for (int other : stations) {
+      if (other == next) {
+        return;
+      }
+    }
+    stations[station] = next;
+  }
+
+  // power every tile connected to a station, and nothing else
+  void updatePower() {
+    resetNodesPowered();
+    for (int station : stations) {
+      GamePiece powerStation = nodes.get(station);
+      if (!powerStation.powered) {
+        updatePowerStatus(powerStation);
+      }
+    }
+  }
+
+  // turn the power off for all nodes
+  void resetNodesPowered() {
+    for (GamePiece node : nodes) {
+      node.powered = false;
+    }
+  }
+
+  // power all unpowered tiles connected to the given node argument
+  void updatePowerStatus(GamePiece node) {
+    node.powered = true;
+    ArrayList<GamePiece> neighbors = getConnectedNeighbors(node);
+    for (GamePiece neighbor : neighbors) {
+      if (!neighbor.powered) {
+        updatePowerStatus(neighbor);
+      }
+    }
+  }
+
+  // find the longest path between two connected nodes on the board
+  int findLongestPath() {
+    int maxLength = 0;
+    resetNodesVisited();
+
+    for (GamePiece node : nodes) {
+      if (!node.visited) {
+        int length = dfs(node);
+        maxLength = Math.max(maxLength, length);
+      }
+    }
+
+    return maxLength;
+  }
+
+  // set the visited field of every node to false
+  void resetNodesVisited() {
+    for (GamePiece node : nodes) {
+      node.visited = false;
+    }
+  }
+
+  // depth first search (returns the length of the longest path from some start node)
+  int dfs(GamePiece startNode) {
+    startNode.visited = true;
+    int maxLength = 0;
+
+    for (GamePiece neighbor : getConnectedNeighbors(startNode)) {
+      if (!neighbor.visited) {
+        int length = 1 + dfs(neighbor);
+        maxLength = Math.max(maxLength, length);
+      }
+    }
+
+    return maxLength;
+  }
+
+  // breadth first search to find the shortest path between two nodes
+  int bfs(GamePiece startNode, GamePiece target) {
+    resetNodesVisited();
+    HashMap<GamePiece, Edge> cameFromEdge = new HashMap<>();
+    Deque<GamePiece> worklist = new LinkedList<>();
+
+    worklist.add(startNode);
+    startNode.visited = true;
+
+    while (!worklist.isEmpty()) {
+      GamePiece next = worklist.remove();
+
+      if (next.equals(target)) {
+        return reconstruct(cameFromEdge, target);
+      }
+
+      for (GamePiece neighbor : getConnectedNeighbors(next)) {
+        if (!neighbor.visited) {
+          worklist.add(neighbor);
+          neighbor.visited = true;
+          cameFromEdge.put(neighbor, new Edge(next, neighbor, 0));
+        }
+      }
+    }
+    // -1 if target is not reachable from startNode
+    return -1;
+  }
+
+  // reconstruct the path between two nodes
+  int reconstruct(HashMap<GamePiece, Edge> cameFromEdge, GamePiece target) {
+    ArrayList<GamePiece> path = new ArrayList<>();
+    GamePiece current = target;
+
+    while (cameFromEdge.containsKey(current)) {
+      path.add(current);
+      current = cameFromEdge.get(current).fromNode;
+    }
+
+    path.add(current);
+
+    return path.size() - 1;
+  }
+
+  // the distance from the given tile to every tile, -1 where unreachable:
+  // bfs without a target, reconstructing the path to every tile it reached
+  int[] distancesFrom(int start) {
+    resetNodesVisited();
+    HashMap<GamePiece, Edge> cameFromEdge = new HashMap<>();
+    Deque<GamePiece> worklist = new LinkedList<>();
+    ArrayList<GamePiece> reached = new ArrayList<>();
+
+    GamePiece startNode = nodes.get(start);
+    worklist.add(startNode);
+    startNode.visited = true;
+
+    while (!worklist.isEmpty()) {
+      GamePiece next = worklist.remove();
+      reached.add(next);
+      for (GamePiece neighbor : getConnectedNeighbors(next)) {
+        if (!neighbor.visited) {
+          worklist.add(neighbor);
+          neighbor.visited = true;
+          cameFromEdge.put(neighbor, new Edge(next, neighbor, 0));
+        }
+      }
+    }
+    int[] dist = new int[nodes.size()];
+    Arrays.fill(dist, -1);
+    for (GamePiece node : reached) {
+      dist[node.row * width + node.col] = reconstruct(cameFromEdge, node);
+    }
+    return dist;
+  }
+
+  // the distance from each station to every tile
+  int[][] stationDistances() {
+    int[][] dist = new int[stations.length][];
+    for (int s = 0; s < stations.length; s++) {
+      dist[s] = distancesFrom(stations[s]);
+    }
+    return dist;
+  }
+
+  // the distance from every tile to its nearest station, -1 if unpowered
+  int[] nearestDistances(int[][] perStation) {
+    int[] nearest = new int[nodes.size()];
+    Arrays.fill(nearest, -1);
+    for (int[] dist : perStation) {
+      for (int i = 0; i < nearest.length; i++) {
+        if (dist[i] != -1 && (nearest[i] == -1 || dist[i] < nearest[i])) {
+          nearest[i] = dist[i];
+        }
+      }
+    }
+    return nearest;
+  }
+
+  // all neighbors that are connected to the argument node
+  ArrayList<GamePiece> getConnectedNeighbors(GamePiece node) {
+    ArrayList<GamePiece> neighbors = new ArrayList<>();
+    if (node.top && 0 < node.row) {
+      GamePiece topNeighbor = board.get(node.row - 1).get(node.col);
+      if (topNeighbor.bottom) {
+        neighbors.add(topNeighbor);
+      }
+    }
+    if (node.bottom && node.row < height - 1) {
+      GamePiece bottomNeighbor = board.get(node.row + 1).get(node.col);
+      if (bottomNeighbor.top) {
+        neighbors.add(bottomNeighbor);
+      }
+    }
+    if (node.left && 0 < node.col) {
+      GamePiece leftNeighbor = board.get(node.row).get(node.col - 1);
+      if (leftNeighbor.right) {
+        neighbors.add(leftNeighbor);
+      }
+    }
+    if (node.right && node.col < width - 1) {
+      GamePiece rightNeighbor = board.get(node.row).get(node.col + 1);
+      if (rightNeighbor.left) {
+        neighbors.add(rightNeighbor);
+      }
+    }
+    return neighbors;
+  }
+
+  // find the MST of the given nodes using Kruskal's Algorithm,
+  // consuming the given edges
+  static ArrayList<Edge> findMST(ArrayList<Edge> allEdges, ArrayList<GamePiece> nodes) {
+    HashMap<GamePiece, GamePiece> representatives = new HashMap<>();
+    for (GamePiece node : nodes) {
+      representatives.put(node, node);
+    }
+    ArrayList<Edge> mst = new ArrayList<>();
+    allEdges.sort(Comparator.comparingInt(edge -> edge.weight));
+    while (mst.size() < nodes.size() - 1) {
+      Edge edge = allEdges.remove(0);
+      GamePiece from = find(representatives, edge.fromNode);
+      GamePiece to = find(representatives, edge.toNode);
+      if (from != to) {
+        mst.add(edge);
+        representatives.put(from, to);
+      }
+    }
+    return mst;
+  }
+
+  // find the representative node
+  static GamePiece find(HashMap<GamePiece, GamePiece> representatives, GamePiece node) {
+    if (representatives.get(node) == node) {
+      return node;
+    }
+    GamePiece rep = find(representatives, representatives.get(node));
+    representatives.put(node, rep);
+    return rep;
+  }
+}
+
+// runs random cases against LightEmAll and the reference engine in lockstep,
+// comparing the powered tiles, distances and win state after every tick,
+// and shrinks any case that diverges to a minimal reproduction
+class PowerFuzzer {
+  // applied to every game before a case starts, to select the engine under test
+  Consumer<LightEmAll> configure;
+
+  PowerFuzzer(Consumer<LightEmAll> configure) {
+    this.configure = configure;
+  }
+
+  PowerFuzzer() {
+    this(game -> { });
+  }
+
+  // the first divergence the given case runs into, or null if there is none
+  String run(FuzzCase fuzz) {
+    LightEmAll game;
+    try {
+      game = new LightEmAll(fuzz.width, fuzz.height, fuzz.stations, new Random(fuzz.boardSeed));
+    }
+    catch (RuntimeException e) {
+      return "construction threw " + e;
+    }
+    configure.accept(game);
+    ReferenceEngine reference = new ReferenceEngine(game);
+    Random probes = new Random(fuzz.boardSeed);
+    String divergence = checkStatic(fuzz, game, reference);
+    for (int step = 0; step < fuzz.ops.size() && divergence == null; step++) {
+      FuzzOp op = fuzz.ops.get(step);
+      try {
+        int index = op.row * fuzz.width + op.col;
+        if (op.kind == FuzzOp.CLICK) {
+          game.onMouseClicked(new Posn(op.col * game.tileSize + 1, op.row * game.tileSize + 1),
+              "LeftButton");
+          reference.rotate(index);
+        }
+        else if (op.kind == FuzzOp.KEY) {
+          game.onKeyEvent(op.key);
+          reference.key(op.key);
+        }
+        else if (op.kind == FuzzOp.MOVE) {
+          game.input.move(op.station, op.key);
+          reference.move(op.station, op.key);
+        }
+        else if (op.kind == FuzzOp.DIRECT) {
+          // rotateTile skips the queue, so flush the queue first to keep the order
+          game.processInput();
+          game.rotateTile(op.col, op.row);
+          reference.rotate(index);
+        }
+        else {
+          game.onTick();
+          divergence = check(game, reference, probes);
+        }
+      }
+      catch (RuntimeException e) {
+        divergence = "threw " + e;
+      }
+      if (divergence != null) {
+        divergence = "step " + step + " (" + op + "): " + divergence;
+      }
+    }
+    return divergence;
+  }
+
+  // compare the methods that don't depend on input: the longest path, and the
+  // spanning tree of a second board built from the same seed, so that neither
+  // the game's union-find nor its random numbers are touched
+  String checkStatic(FuzzCase fuzz, LightEmAll game, ReferenceEngine reference) {
+    int longest = game.findLongestPath();
+    if (longest != reference.findLongestPath()) {
+      return "findLongestPath " + longest + " != " + reference.findLongestPath();
+    }
+    LightEmAll scratch = new LightEmAll(fuzz.width, fuzz.height, fuzz.stations,
+        new Random(fuzz.boardSeed));
+    scratch.initNodes();
+    ArrayList<Edge> edges = scratch.initEdges();
+    ArrayList<Edge> expected = ReferenceEngine.findMST(new ArrayList<>(edges), scratch.nodes);
+    ArrayList<Edge> actual = scratch.findMST(new ArrayList<>(edges), scratch.nodes);
+    if (!actual.equals(expected)) {
+      return "findMST chose " + actual.size() + " edges differing from the reference";
+    }
+    return null;
+  }
+
+  // compare the state of the game after a tick with the reference
+  String check(LightEmAll game, ReferenceEngine reference, Random probes) {
+    for (int i = 0; i < reference.nodes.size(); i++) {
+      if (game.nodes.get(i).mask() != reference.mask(i)) {
+        return "tile " + i + " has mask " + game.nodes.get(i).mask()
+            + " but should have " + reference.mask(i);
+      }
+    }
+    for (int s = 0; s < reference.stations.length; s++) {
+      if (game.indexOf(game.stations.get(s)) != reference.stations[s]) {
+        return "station " + s + " is on tile " + game.indexOf(game.stations.get(s))
+            + " but should be on " + reference.stations[s];
+      }
+    }
+    int activeTile = reference.stations[reference.active];
+    if (game.activeStation != reference.active
+        || game.powerRow * game.width + game.powerCol != activeTile) {
+      return "active station is " + game.activeStation + " but should be " + reference.active;
+    }
+
+    reference.updatePower();
+    int[][] perStation = reference.stationDistances();
+    int[] nearest = reference.nearestDistances(perStation);
+    int[] coverage = new int[reference.stations.length];
+    boolean won = true;
+    for (int i = 0; i < nearest.length; i++) {
+      boolean powered = reference.nodes.get(i).powered;
+      won &= powered;
+      if (game.nodes.get(i).powered != powered) {
+        return "tile " + i + " powered is " + game.nodes.get(i).powered;
+      }
+      if (game.stationDist[i] != nearest[i]) {
+        return "tile " + i + " distance " + game.stationDist[i] + " != " + nearest[i];
+      }
+      if (powered) {
+        // ties may go to any of the nearest stations
+        int station = game.nearestStation[i];
+        if (station < 0 || perStation[station][i] != nearest[i]) {
+          return "tile " + i + " claimed by station " + station + " which isn't nearest";
+        }
+        coverage[station] += 1;
+      }
+    }
+    if (!Arrays.equals(coverage, game.coverage)) {
+      return "coverage " + Arrays.toString(game.coverage) + " != " + Arrays.toString(coverage);
+    }
+    if (game.allPowered() != won) {
+      return "allPowered is " + game.allPowered();
+    }
+    if (game.bitboard != null && game.bitboard.powersAll(game) != won) {
+      return "the bitboard says every tile powered is " + !won;
+    }
+
+    for (int k = 0; k < 3; k++) {
+      int from = probes.nextInt(nearest.length);
+      int to = probes.nextInt(nearest.length);
+      int expected = reference.bfs(reference.nodes.get(from), reference.nodes.get(to));
+      int actual = game.bfs(game.nodes.get(from), game.nodes.get(to));
+      if (actual != expected) {
+        return "bfs(" + from + ", " + to + ") " + actual + " != " + expected;
+      }
+    }
+    return null;
+  }
+
+  // the smallest case derived from the given one that still fails the test:
+  // first chunks of ops are removed, halving the chunk size down to single ops,
+  // then the board is made smaller one row, column or station at a time
+  static FuzzCase shrink(FuzzCase fuzz, Predicate<FuzzCase> fails) {
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (int chunk = Math.max(1, fuzz.ops.size() / 2); 0 < chunk; chunk /= 2) {
+        int from = 0;
+        while (from < fuzz.ops.size()) {
+          FuzzCase smaller = fuzz.without(from, Math.min(fuzz.ops.size(), from + chunk));
+          if (fails.test(smaller)) {
+            fuzz = smaller;
+            progress = true;
+          }
+          else {
+            from += chunk;
+          }
+        }
+      }
+      ArrayList<FuzzCase> boards = new ArrayList<>();
+      if (1 < fuzz.width) {
+        boards.add(fuzz.resized(fuzz.width - 1, fuzz.height,
+            Math.min(fuzz.stations, (fuzz.width - 1) * fuzz.height)));
+      }
+      if (1 < fuzz.height) {
+        boards.add(fuzz.resized(fuzz.width, fuzz.height - 1,
+            Math.min(fuzz.stations, fuzz.width * (fuzz.height - 1))));
+      }
+      if (1 < fuzz.stations) {
+        boards.add(fuzz.resized(fuzz.width, fuzz.height, fuzz.stations - 1));
+      }
+      for (FuzzCase smaller : boards) {
+        if (!progress && fails.test(smaller)) {
+          fuzz = smaller;
+          progress = true;
+        }
+      }
+    }
+    return fuzz;
+  }
+
+  // run the given number of cases, starting from the given seed, on all cores,
+  // and return a shrunk reproduction of every case that diverged
+  ArrayList<String> fuzz(long seed, int cases) {
+    List<FuzzCase> failures = LongStream.range(seed, seed + cases).parallel()
+        .mapToObj(FuzzCase::generate)
+        .filter(fuzz -> run(fuzz) != null)
+        .collect(Collectors.toList());
+    ArrayList<String> reports = new ArrayList<>();
+    for (FuzzCase failure : failures) {
+      FuzzCase small = shrink(failure, fuzz -> run(fuzz) != null);
+      reports.add(run(small) + "\n  in " + small);
+    }
+    return reports;
+  }
+
+  // usage: PowerFuzzer [cases] [seed]
+  public static void main(String[] args) {
+    int cases = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    long start = System.nanoTime();
+    ArrayList<String> reports = new PowerFuzzer().fuzz(seed, cases);
+    System.out.printf("%d cases in %.2fs, %d diverged%n", cases,
+        (System.nanoTime() - start) / 1e9, reports.size());
+    for (String report : reports) {
+      System.out.println(report);
+    }
+  }
+}
+
+// examples for the differential fuzzer
+class ExamplesPowerFuzzer {
+  // tests that the game agrees with the reference on a batch of random cases
+  void testFuzz(Tester t) {
+    t.checkExpect(new PowerFuzzer().fuzz(0, 300), new ArrayList<String>());
+  }
+
+  // tests that the bitsets kept by the game agree with the reference on who won
+  void testFuzzBitboard(Tester t) {
+    t.checkExpect(new PowerFuzzer(LightEmAll::useBitboardPower).fuzz(1, 200),
+        new ArrayList<String>());
+  }
+
+  // tests that the reference engine agrees with the game on the example board
+  void testReference(Tester t) {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    ReferenceEngine reference = new ReferenceEngine(game);
+    t.checkExpect(reference.findLongestPath(), game.findLongestPath());
+    reference.rotate(0);
+    game.nodes.get(0).rotate();
+    t.checkExpect(reference.mask(0), game.nodes.get(0).mask());
+    t.checkExpect(reference.bfs(reference.nodes.get(3), reference.nodes.get(1)),
+        game.bfs(game.nodes.get(3), game.nodes.get(1)));
+    t.checkExpect(reference.distancesFrom(3)[1], game.bfs(game.nodes.get(3), game.nodes.get(1)));
+  }
+
+  // tests that checking the static methods leaves the game as it was
+  void testCheckStatic(Tester t) {
+    FuzzCase fuzz = new FuzzCase(5, 4, 2, 3, new ArrayList<>());
+    LightEmAll game = new LightEmAll(5, 4, 2, new Random(3));
+    LightEmAll twin = new LightEmAll(5, 4, 2, new Random(3));
+    HashMap<GamePiece, GamePiece> representatives = game.representatives;
+    ArrayList<Edge> mst = game.mst;
+    t.checkExpect(new PowerFuzzer().checkStatic(fuzz, game, new ReferenceEngine(game)), null);
+    t.checkExpect(game.representatives == representatives, true);
+    t.checkExpect(game.mst == mst, true);
+    t.checkExpect(game.rand.nextLong(), twin.rand.nextLong());
+  }
+
+  // tests that a broken engine is caught and its case shrunk
+  void testDivergence(Tester t) {
+    // an engine that always reports the top left tile as powered
+    PowerFuzzer broken = new PowerFuzzer(game -> game.input = new InputQueue() {
+      void drain(LightEmAll drained) {
+        super.drain(drained);
+        drained.nodes.get(0).powered = true;
+      }
+    });
+    ArrayList<String> reports = broken.fuzz(0, 20);
+    t.checkExpect(reports.isEmpty(), false);
+    t.checkExpect(reports.get(0).contains("tile 0 powered is true"), true);
+  }
+
+  // tests that shrinking finds the smallest failing case
+  void testShrink(Tester t) {
+    FuzzCase fuzz = FuzzCase.generate(7);
+    fuzz.ops.add(new FuzzOp(FuzzOp.CLICK, 0, 0, 0, null));
+    // the "bug" is any click on the top left tile
+    FuzzCase small = PowerFuzzer.shrink(fuzz, c -> c.ops.stream()
+        .anyMatch(op -> op.kind == FuzzOp.CLICK && op.row == 0 && op.col == 0));
+    t.checkExpect(small.ops.size(), 1);
+    t.checkExpect(small.width, 1);
+    t.checkExpect(small.height, 1);
+    t.checkExpect(small.stations, 1);
+  }
+}
@@ -0,0 +1,379 @@
+import java.util.*;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// spreads power out from the stations over several ticks, so it can be seen
+// moving along the wires. the breadth first search of LightEmAll.updatePower
+// is run a bounded number of tiles per tick, straight into the game's power
+// fields, so animating it costs nothing on top of the update itself.
+//
+// when wires change, the tiles whose power may change are cleared first and
+// their stations start spreading power again, while the rest of the wave
+// carries on. the tiles to clear are every tile connected to a seed (a turned
+// tile, one of its neighbors, or a tile a station moved from), found by a flood
+// that also runs a bounded number of tiles per tick, before any more power
+// spreads. that set is closed under the wiring (see collectRegion), so the
+// restarted part of the wave never meets the rest of it. entries of the wave
+// queued before a tile was last cleared are skipped when they come up
+class PowerWave {
+  LightEmAll game;
+  // how many tiles may be cleared or spread to in one tick
+  int tilesPerTick;
+  // the tiles waiting to spread power, and when each was queued, in a ring
+  int[] queue;
+  int[] queued;
+  int head;
+  int size;
+  // counts the restarts, and the restart that last cleared each tile
+  int epoch;
+  int[] cleared;
+  // the flood clearing tiles after a restart: its seeds, its worklist, and,
+  // for a full restart, the next tile to seed it with
+  int[] seeds;
+  int seedCount;
+  int[] stack;
+  int stackSize;
+  int sweep;
+  boolean clearing;
+  // the tiles the last step changed, each listed once
+  int[] touched;
+  int touchedCount;
+  int[] touchedStamp;
+  int steps;
+
+  PowerWave(LightEmAll game, int tilesPerTick) {
+    int tiles = game.nodes.size();
+    this.game = game;
+    this.tilesPerTick = tilesPerTick;
+    this.queue = new int[tiles];
+    this.queued = new int[tiles];
+    this.cleared = new int[tiles];
+    this.seeds = new int[64];
+    this.stack = new int[tiles];
+    this.sweep = tiles;
+    this.touched = new int[2 * tilesPerTick];
+    this.touchedStamp = new int[tiles];
+  }
+
+  // is power still spreading, or are tiles still being cleared?
+  boolean animating() {
+    return clearing || size != 0;
+  }
+
+  // clear the whole board and spread power from every station again
+  void restartAll() {
+    game.allocatePower();
+    begin();
+    sweep = 0;
+  }
+
+  // clear every tile connected to the first count of the given seeds,
+  // and spread power from the stations among them again
+  void restart(int[] from, int count) {
+    begin();
+    for (int i = 0; i < count; i++) {
+      if (seedCount == seeds.length) {
+        seeds = Arrays.copyOf(seeds, seeds.length * 2);
+      }
+      seeds[seedCount++] = from[i];
+    }
+  }
+
+  // clear the given tile's component and its neighbors', after it was rotated
+  // from outside of the input queue
+  void restartAround(int index) {
+    GamePiece tile = game.nodes.get(index);
+    int[] around = new int[5];
+    int count = 0;
+    around[count++] = index;
+    for (int dir = 0; dir < 4; dir++) {
+      int next = game.neighborIndex(tile.row, tile.col, dir);
+      if (next != -1) {
+        around[count++] = next;
+      }
+    }
+    restart(around, count);
+  }
+
+  // start a new restart, unless one is still clearing tiles, in which case
+  // its flood takes on the new seeds as well
+  void begin() {
+    if (!clearing) {
+      clearing = true;
+      epoch += 1;
+    }
+  }
+
+  // clear or spread power to up to tilesPerTick tiles
+  void step() {
+    steps += 1;
+    touchedCount = 0;
+    int work = 0;
+    while (work < tilesPerTick && clearing) {
+      clearNext();
+      work += 1;
+    }
+    while (work < tilesPerTick && size != 0) {
+      spreadNext();
+      work += 1;
+    }
+    game.publish(touched, touchedCount);
+  }
+
+  // clear the next tile of the flood. once there are none left,
+  // the stations on cleared tiles start spreading power
+  void clearNext() {
+    int index = -1;
+    if (stackSize != 0) {
+      index = stack[--stackSize];
+    }
+    else if (seedCount != 0) {
+      index = seeds[--seedCount];
+    }
+    else if (sweep < cleared.length) {
+      index = sweep++;
+    }
+    if (index == -1) {
+      clearing = false;
+      // the stations on cleared tiles, wherever they moved to while clearing
+      for (int station = 0; station < game.stations.size(); station++) {
+        int tile = game.indexOf(game.stations.get(station));
+        if (game.stationDist[tile] == -1) {
+          game.claim(tile, station, 0);
+          touch(tile);
+          enqueue(tile);
+        }
+      }
+      return;
+    }
+    if (cleared[index] == epoch) {
+      return;
+    }
+    cleared[index] = epoch;
+    GamePiece tile = game.nodes.get(index);
+    if (game.stationDist[index] != -1) {
+      game.coverage[game.nearestStation[index]] -= 1;
+      game.stationDist[index] = -1;
+      game.nearestStation[index] = -1;
+      tile.powered = false;
+    }
+    touch(index);
+    for (int dir = 0; dir < 4; dir++) {
+      int next = game.connectedIndex(tile, dir);
+      if (next != -1 && cleared[next] != epoch) {
+        stack[stackSize++] = next;
+        if (stackSize == stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+      }
+    }
+  }
+
+  // spread power from the tile at the front of the queue to its neighbors
+  void spreadNext() {
+    int index = queue[head];
+    int when = queued[head];
+    head = (head + 1) % queue.length;
+    size -= 1;
+    if (cleared[index] > when) {
+      return;
+    }
+    GamePiece tile = game.nodes.get(index);
+    for (int dir = 0; dir < 4; dir++) {
+      int next = game.connectedIndex(tile, dir);
+      if (next != -1 && game.stationDist[next] == -1) {
+        game.claim(next, game.nearestStation[index], game.stationDist[index] + 1);
+        touch(next);
+        enqueue(next);
+      }
+    }
+  }
+
+  // add the given tile to the back of the queue, growing it if needed
+  // (which it only is if entries that will be skipped fill it up)
+  void enqueue(int index) {
+    if (size == queue.length) {
+      int[] grown = new int[queue.length * 2];
+      int[] grownQueued = new int[queue.length * 2];
+      for (int i = 0; i < size; i++) {
+        grown[i] = queue[(head + i) % queue.length];
+        grownQueued[i] = queued[(head + i) % queue.length];
+      }
+      queue = grown;
+      queued = grownQueued;
+      head = 0;
+    }
+    queue[(head + size) % queue.length] = index;
+    queued[(head + size) % queue.length] = epoch;
+    size += 1;
+  }
+
+  // note that the given tile changed in this step
+  void touch(int index) {
+    if (touchedStamp[index] != steps) {
+      touchedStamp[index] = steps;
+      if (touchedCount == touched.length) {
+        touched = Arrays.copyOf(touched, touched.length * 2);
+      }
+      touched[touchedCount++] = index;
+    }
+  }
+
+  // usage: PowerWave [size] [tiles per tick]
+  // animates power spreading over a solved size x size board, turning a tile
+  // partway through, and reports how long the ticks took
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int tilesPerTick = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    TileSource source = new GeneratedTileSource(size, size, 1, true);
+    int[] masks = new int[size * size];
+    for (int index = 0; index < masks.length; index++) {
+      masks[index] = source.mask(index / size, index % size);
+    }
+    LightEmAll game = new LightEmAll(size, size, masks, new int[] {0}, 0, size, 0);
+    game.useWavefront(tilesPerTick);
+    int ticks = 0;
+    long first = 0;
+    long slowest = 0;
+    long total = 0;
+    do {
+      if (ticks == 100) {
+        // turn a tile next to the station, cutting off most of what is powered
+        game.onMouseClicked(new Posn(game.tileSize + 1, 1), "LeftButton");
+      }
+      long start = System.nanoTime();
+      game.onTick();
+      long took = System.nanoTime() - start;
+      if (ticks == 0) {
+        first = took;
+      }
+      else {
+        slowest = Math.max(slowest, took);
+      }
+      total += took;
+      ticks += 1;
+    } while (game.wave.animating() || ticks <= 100);
+    System.out.printf("%d ticks of %d tiles: %.2f ms a tick on average, %.2f ms at most"
+        + " (%.2f ms for the first, which sets up the input queue)%n", ticks, tilesPerTick,
+        total / 1e6 / ticks, slowest / 1e6, first / 1e6);
+  }
+}
+
+// examples for animating power
+class ExamplesPowerWave {
+  // run the wave of the given game to the end, returning how many ticks it took
+  int finish(LightEmAll game) {
+    int ticks = 0;
+    while (game.wave.animating()) {
+      game.onTick();
+      ticks += 1;
+    }
+    return ticks;
+  }
+
+  // a copy of the power fields of the given game, updated all at once
+  int[] expected(LightEmAll game) {
+    int[] dist = game.stationDist.clone();
+    int[] nearest = game.nearestStation.clone();
+    int[] coverage = game.coverage.clone();
+    game.updatePower();
+    int[] expected = game.stationDist.clone();
+    game.stationDist = dist;
+    game.nearestStation = nearest;
+    game.coverage = coverage;
+    for (int index = 0; index < dist.length; index++) {
+      game.nodes.get(index).powered = dist[index] != -1;
+    }
+    return expected;
+  }
+
+  // tests that the wave spreads a bounded number of tiles a tick
+  // and ends up where a full update would
+  void testWave(Tester t) {
+    LightEmAll game = new LightEmAll(8, 8, 4);
+    game.useWavefront(5);
+    game.onTick();
+    // the whole board is cleared first, at 5 tiles a tick
+    t.checkExpect(game.wave.touchedCount, 5);
+    t.checkExpect(game.wave.clearing, true);
+    int ticks = finish(game);
+    t.checkExpect(64 / 5 <= ticks, true);
+    t.checkExpect(game.stationDist, expected(game));
+    t.checkExpect(game.wave.animating(), false);
+  }
+
+  // tests turning tiles while the wave is spreading, and between
+  // the clearing and the spreading
+  void testRestart(Tester t) {
+    Random rand = new Random(3);
+    for (int round = 0; round < 30; round++) {
+      LightEmAll game = new LightEmAll(2 + rand.nextInt(9), 2 + rand.nextInt(9),
+          1 + rand.nextInt(3), rand);
+      game.useWavefront(1 + rand.nextInt(6));
+      for (int tick = 0; tick < 60; tick++) {
+        if (rand.nextInt(3) == 0) {
+          game.onMouseClicked(new Posn(rand.nextInt(game.width * 50),
+              rand.nextInt(game.height * 50)), "LeftButton");
+        }
+        if (rand.nextInt(5) == 0) {
+          game.rotateTile(rand.nextInt(game.width), rand.nextInt(game.height));
+        }
+        if (rand.nextInt(8) == 0) {
+          game.onKeyEvent(new String[] {"up", "down", "left", "right", "2"}[rand.nextInt(5)]);
+        }
+        game.onTick();
+      }
+      finish(game);
+      t.checkExpect(game.stationDist, expected(game));
+      int[] coverage = new int[game.stations.size()];
+      for (int index = 0; index < game.nodes.size(); index++) {
+        if (game.stationDist[index] != -1) {
+          coverage[game.nearestStation[index]] += 1;
+        }
+      }
+      t.checkExpect(game.coverage, coverage);
+    }
+  }
+
+  // tests that spectators see the wave as it spreads
+  void testFeed(Tester t) {
+    LightEmAll game = new LightEmAll(6, 6, 4);
+    game.startFeed();
+    FeedSubscription subscription = game.feed.subscribe();
+    SpectatorBoard spectator = new SpectatorBoard(subscription);
+    game.useWavefront(3);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    for (int tick = 0; tick < 5; tick++) {
+      game.onTick();
+      spectator.catchUp(subscription);
+      t.checkExpect(spectator.matches(game), true);
+    }
+    finish(game);
+    spectator.catchUp(subscription);
+    t.checkExpect(spectator.matches(game), true);
+  }
+
+  // tests that turning neighboring tiles in one batch publishes each tile once,
+  // though it is a seed of every turned tile next to it
+  void testFeedNeighbors(Tester t) {
+    LightEmAll game = new LightEmAll(3, 3, 1);
+    game.startFeed();
+    FeedSubscription subscription = game.feed.subscribe();
+    SpectatorBoard spectator = new SpectatorBoard(subscription);
+    game.useWavefront(2);
+    game.onTick();
+    finish(game);
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 3; col++) {
+        game.onMouseClicked(new Posn(col * 50 + 10, row * 50 + 10), "LeftButton");
+      }
+    }
+    game.onTick();
+    spectator.catchUp(subscription);
+    t.checkExpect(spectator.matches(game), true);
+    finish(game);
+    spectator.catchUp(subscription);
+    t.checkExpect(spectator.matches(game), true);
+  }
+}
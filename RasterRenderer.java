@@ -0,0 +1,265 @@
+import java.awt.*;
+import java.awt.image.*;
+
+import tester.*;
+import javalib.impworld.*;
+import javalib.worldimages.*;
+
+// draws a board straight into one reusable image. every kind of tile is
+// rasterized once up front, as a palette entry per pixel, and a frame only
+// copies the tiles whose wires, station or gradient color changed since this
+// renderer last drew them, tinting the wire pixels as it goes. so once the
+// palette is warm a frame allocates nothing per tile, and the whole board is
+// placed on the scene as a single image
+class RasterRenderer {
+  static final int WIRE_WIDTH = 5;
+
+  // the palette entries of a rasterized tile
+  static final byte BACKGROUND = 0;
+  static final byte WIRE = 1;
+  static final byte STAR_OUTLINE = 2;
+  static final byte STAR_FILL = 3;
+  static final Color STAR_OUTLINE_COLOR = new Color(255, 128, 0);
+  static final Color STAR_FILL_COLOR = new Color(0, 255, 255);
+  static final int STAR_OUTLINE_RGB = STAR_OUTLINE_COLOR.getRGB() & 0xFFFFFF;
+  static final int STAR_FILL_RGB = STAR_FILL_COLOR.getRGB() & 0xFFFFFF;
+  static final int BACKGROUND_RGB = Color.DARK_GRAY.getRGB() & 0xFFFFFF;
+
+  int width;
+  int height;
+  int tileSize;
+  // the board as drawn so far, as an image javalib can place
+  ComputedPixelImage placed;
+  // the palette entry of every pixel of each kind of tile, by its key's low
+  // five bits: the wire mask, plus 16 if there is a station on it
+  byte[][] tiles;
+  // the wire color for each red component of the gradient
+  Color[] wireColors;
+  // the key each tile was last drawn with, -1 if it never was
+  int[] drawn;
+  // how many tiles the last frame repainted
+  int repainted;
+
+  RasterRenderer(int width, int height, int tileSize) {
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.placed = new ComputedPixelImage(width * tileSize, height * tileSize);
+    this.tiles = new byte[32][];
+    for (int key = 0; key < 32; key++) {
+      tiles[key] = rasterize(key & 15, 16 <= key, tileSize);
+    }
+    this.wireColors = new Color[256];
+    for (int red = 0; red < 256; red++) {
+      wireColors[red] = new Color(red, 100, 100);
+    }
+    this.drawn = new int[width * height];
+    java.util.Arrays.fill(drawn, -1);
+  }
+
+  // the palette entry of every pixel of a tile of the given size with the
+  // given wires, laid out the same way as GamePiece.tileImage
+  static byte[] rasterize(int mask, boolean station, int size) {
+    return rasterize(mask, station, size, WIRE_WIDTH);
+  }
+
+  // the same, with wires of the given width
+  static byte[] rasterize(int mask, boolean station, int size, int wireWidth) {
+    byte[] tile = new byte[size * size];
+    int half = (size + 1) / 2;
+    int middle = (size - wireWidth) / 2;
+    fill(tile, size, middle, middle, wireWidth, wireWidth, WIRE);
+    if ((mask & (1 << GamePiece.TOP)) != 0) {
+      fill(tile, size, middle, 0, wireWidth, half, WIRE);
+    }
+    if ((mask & (1 << GamePiece.BOTTOM)) != 0) {
+      fill(tile, size, middle, size - half, wireWidth, half, WIRE);
+    }
+    if ((mask & (1 << GamePiece.LEFT)) != 0) {
+      fill(tile, size, 0, middle, half, wireWidth, WIRE);
+    }
+    if ((mask & (1 << GamePiece.RIGHT)) != 0) {
+      fill(tile, size, size - half, middle, half, wireWidth, WIRE);
+    }
+    if (station) {
+      drawStar(tile, size);
+    }
+    return tile;
+  }
+
+  // set a rectangle of the given tile to the given palette entry
+  static void fill(byte[] tile, int size, int x, int y, int w, int h, byte entry) {
+    for (int row = Math.max(0, y); row < Math.min(size, y + h); row++) {
+      for (int col = Math.max(0, x); col < Math.min(size, x + w); col++) {
+        tile[row * size + col] = entry;
+      }
+    }
+  }
+
+  // draw the seven pointed star of a power station onto the given tile
+  static void drawStar(byte[] tile, int size) {
+    double outer = size / 3.0;
+    Polygon star = new Polygon();
+    for (int i = 0; i < 14; i++) {
+      double radius = i % 2 == 0 ? outer : outer / 2;
+      double angle = Math.PI * i / 7 - Math.PI / 2;
+      star.addPoint((int) Math.round(size / 2.0 + radius * Math.cos(angle)),
+          (int) Math.round(size / 2.0 + radius * Math.sin(angle)));
+    }
+    BufferedImage scratch = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = scratch.createGraphics();
+    g.setColor(STAR_FILL_COLOR);
+    g.fillPolygon(star);
+    g.setColor(STAR_OUTLINE_COLOR);
+    g.drawPolygon(star);
+    g.dispose();
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        int argb = scratch.getRGB(x, y);
+        if ((argb >>> 24) != 0) {
+          tile[y * size + x] = (argb & 0xFFFFFF) == (STAR_FILL_COLOR.getRGB() & 0xFFFFFF)
+              ? STAR_FILL : STAR_OUTLINE;
+        }
+      }
+    }
+  }
+
+  // the key a tile is drawn with: its wires, its station, and its wire color
+  static int key(int mask, boolean station, int red) {
+    return mask | (station ? 16 : 0) | (red << 5);
+  }
+
+  // bring the image up to date with the given game
+  void paint(LightEmAll game) {
+    repainted = 0;
+    for (int index = 0; index < drawn.length; index++) {
+      GamePiece tile = game.nodes.get(index);
+      int key = key(tile.mask(), tile.powerStation,
+          LightEmAll.gradientRed(game.stationDist[index], game.radius));
+      if (drawn[index] != key) {
+        blit(index, key);
+      }
+    }
+  }
+
+  // bring the image up to date with the given snapshot
+  void paint(BoardSnapshot snapshot) {
+    repainted = 0;
+    for (int index = 0; index < drawn.length; index++) {
+      int key = key(snapshot.masks[index], snapshot.isStation(index),
+          LightEmAll.gradientRed(snapshot.dist[index], snapshot.radius));
+      if (drawn[index] != key) {
+        blit(index, key);
+      }
+    }
+  }
+
+  // copy the rasterized tile with the given key over the tile at the given index
+  void blit(int index, int key) {
+    byte[] tile = tiles[key & 31];
+    Color wire = wireColors[key >>> 5];
+    int left = index % width * tileSize;
+    int top = index / width * tileSize;
+    for (int y = 0; y < tileSize; y++) {
+      for (int x = 0; x < tileSize; x++) {
+        placed.setPixel(left + x, top + y, color(tile[y * tileSize + x], wire));
+      }
+    }
+    drawn[index] = key;
+    repainted += 1;
+  }
+
+  // the color of the given palette entry for a tile with the given wire color
+  static Color color(byte entry, Color wire) {
+    if (entry == WIRE) {
+      return wire;
+    }
+    else if (entry == STAR_FILL) {
+      return STAR_FILL_COLOR;
+    }
+    else if (entry == STAR_OUTLINE) {
+      return STAR_OUTLINE_COLOR;
+    }
+    return Color.DARK_GRAY;
+  }
+
+  // the RGB of the wires of a tile with the given red component of the gradient
+  static int wireRgb(int red) {
+    return (red << 16) | (100 << 8) | 100;
+  }
+
+  // the RGB of the given palette entry for a tile with the given wire RGB,
+  // the same as color without making a Color
+  static int rgb(byte entry, int wire) {
+    if (entry == WIRE) {
+      return wire;
+    }
+    else if (entry == STAR_FILL) {
+      return STAR_FILL_RGB;
+    }
+    else if (entry == STAR_OUTLINE) {
+      return STAR_OUTLINE_RGB;
+    }
+    return BACKGROUND_RGB;
+  }
+
+  // place the board image onto the given scene
+  void place(WorldScene world) {
+    world.placeImageXY(placed, width * tileSize / 2, height * tileSize / 2);
+  }
+}
+
+// examples for the raster backend
+class ExamplesRasterRenderer {
+  // tests the rasterized wires of a tile
+  void testRasterize(Tester t) {
+    byte[] tile = RasterRenderer.rasterize(1 << GamePiece.TOP, false, 50);
+    // the top wire and the middle are wire, the rest is background
+    t.checkExpect(tile[25], RasterRenderer.WIRE);
+    t.checkExpect(tile[25 * 50 + 25], RasterRenderer.WIRE);
+    t.checkExpect(tile[49 * 50 + 25], RasterRenderer.BACKGROUND);
+    t.checkExpect(tile[25 * 50 + 0], RasterRenderer.BACKGROUND);
+    t.checkExpect(tile[0], RasterRenderer.BACKGROUND);
+
+    byte[] station = RasterRenderer.rasterize(1 << GamePiece.TOP, true, 50);
+    t.checkExpect(station[25 * 50 + 25], RasterRenderer.STAR_FILL);
+    t.checkExpect(station[0], RasterRenderer.BACKGROUND);
+  }
+
+  // tests that only changed tiles are repainted
+  void testDirtyTiles(Tester t) {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.useRasterBackend();
+    game.makeScene();
+    RasterRenderer raster = game.raster;
+    t.checkExpect(raster.repainted, 9);
+    game.makeScene();
+    t.checkExpect(raster.repainted, 0);
+
+    // rotating a tile no station is on, in a component without one,
+    // changes only that tile
+    game.onMouseClicked(new Posn(0, 0), "LeftButton");
+    game.makeScene();
+    t.checkExpect(raster.repainted, 1);
+  }
+
+  // tests that the image shows the wire colors of the game
+  void testPixels(Tester t) {
+    LightEmAll game = new LightEmAll(4, 3, 2, new java.util.Random(3));
+    game.useRasterBackend();
+    game.makeScene();
+    RasterRenderer raster = game.raster;
+    for (int index = 0; index < 12; index++) {
+      GamePiece tile = game.nodes.get(index);
+      int x = tile.col * 50;
+      int y = tile.row * 50;
+      if (!tile.powerStation) {
+        // the middle of every tile is wire
+        t.checkExpect(raster.placed.getPixel(x + 25, y + 25).getRGB(),
+            game.color(tile).getRGB());
+      }
+      // and its corner is background
+      t.checkExpect(raster.placed.getPixel(x, y).getRGB(), Color.DARK_GRAY.getRGB());
+    }
+  }
+}
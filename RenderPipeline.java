@@ -0,0 +1,291 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import tester.*;
+import javalib.impworld.*;
+import javalib.worldimages.*;
+
+// an immutable copy of everything needed to draw a board at one moment,
+// which other threads can read while the game keeps changing
+class BoardSnapshot {
+  long version;
+  int width;
+  int height;
+  int tileSize;
+  int radius;
+  int moves;
+  boolean won;
+  // the wire mask of every tile and its distance to the nearest station,
+  // in row-major order
+  byte[] masks;
+  int[] dist;
+  // the tile index of every station
+  int[] stations;
+
+  // a copy of the given game, whose power fields must be up to date
+  BoardSnapshot(LightEmAll game, long version) {
+    this.version = version;
+    this.width = game.width;
+    this.height = game.height;
+    this.tileSize = game.tileSize;
+    this.radius = game.radius;
+    this.moves = game.moves;
+    this.won = game.allPowered();
+    this.masks = new byte[game.nodes.size()];
+    for (int i = 0; i < masks.length; i++) {
+      masks[i] = (byte) game.nodes.get(i).mask();
+    }
+    this.dist = game.stationDist.clone();
+    this.stations = new int[game.stations.size()];
+    for (int s = 0; s < stations.length; s++) {
+      stations[s] = game.indexOf(game.stations.get(s));
+    }
+  }
+
+  // is there a station on the tile at the given index?
+  boolean isStation(int index) {
+    for (int station : stations) {
+      if (station == index) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
+
+// applies input and draws frames on a thread of its own, so the event thread
+// only queues input and swaps in finished frames, however large the board is.
+// after each batch of input the worker publishes a snapshot, composes the next
+// frame from it into a back buffer, and then makes that the front buffer.
+// with the raster backend there are three raster images: the one the event
+// thread is drawing, the finished one in front, and a free one the worker paints.
+// the event thread is done drawing a frame once it asks for the next, so taking
+// the front one releases the one it had, and the one on screen is never painted over
+class RenderPipeline {
+  LightEmAll game;
+  volatile BoardSnapshot snapshot;
+  volatile WorldScene front;
+  // the raster images that take turns being the back buffer, if rasterizing,
+  // the one in the front frame and the one the event thread last took.
+  // these two are guarded by this pipeline
+  RasterRenderer[] rasters;
+  RasterRenderer frontRaster;
+  RasterRenderer shownRaster;
+  Thread worker;
+  volatile boolean running;
+  // how many frames have been finished
+  volatile long frames;
+  // whether a tick has come since the last frame, to advance a power wave
+  volatile boolean ticked;
+
+  RenderPipeline(LightEmAll game) {
+    this.game = game;
+    if (game.raster != null) {
+      this.rasters = new RasterRenderer[] {game.raster,
+          new RasterRenderer(game.width, game.height, game.tileSize),
+          new RasterRenderer(game.width, game.height, game.tileSize)};
+    }
+  }
+
+  // start the worker
+  void start() {
+    running = true;
+    worker = new Thread(this::renderLoop, "light-em-render");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  // stop the worker, waiting for the frame in progress
+  void stop() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(worker);
+    worker.join();
+  }
+
+  // tell the worker there is new input
+  void wake() {
+    LockSupport.unpark(worker);
+  }
+
+  // tell the worker a tick has come
+  void tick() {
+    ticked = true;
+    LockSupport.unpark(worker);
+  }
+
+  // the last finished frame, or an empty board before the first one is done.
+  // with the raster backend this releases the frame taken before it
+  WorldScene frame() {
+    WorldScene frame;
+    if (rasters == null) {
+      frame = front;
+    }
+    else {
+      synchronized (this) {
+        frame = front;
+        shownRaster = frontRaster;
+      }
+    }
+    if (frame == null) {
+      return game.initWorld();
+    }
+    return frame;
+  }
+
+  // apply input and draw frames until stopped, sleeping while there is no input.
+  // an unpark that comes between the check and the park makes the park return
+  // right away, so no input is ever left waiting
+  void renderLoop() {
+    while (running) {
+      if (front == null || !game.input.isEmpty() || game.powerStale || ticked) {
+        boolean step = ticked;
+        ticked = false;
+        game.processInput();
+        if (step && game.wave != null) {
+          game.wave.step();
+        }
+        BoardSnapshot next = game.snapshot();
+        snapshot = next;
+        front = rasters == null ? compose(game, next) : composeRaster(next);
+        frames += 1;
+      }
+      else {
+        LockSupport.park(this);
+      }
+    }
+  }
+
+  // paint the given snapshot into the raster image that is neither on screen
+  // nor in front, and put it in front
+  WorldScene composeRaster(BoardSnapshot snapshot) {
+    RasterRenderer raster = freeRaster();
+    WorldScene world = new WorldScene(snapshot.width * snapshot.tileSize,
+        snapshot.height * snapshot.tileSize);
+    raster.paint(snapshot);
+    raster.place(world);
+    if (snapshot.won) {
+      game.gameOver(world);
+    }
+    synchronized (this) {
+      frontRaster = raster;
+      front = world;
+    }
+    return world;
+  }
+
+  // the first raster image that is neither on screen nor in front
+  synchronized RasterRenderer freeRaster() {
+    for (RasterRenderer raster : rasters) {
+      if (raster != frontRaster && raster != shownRaster) {
+        return raster;
+      }
+    }
+    throw new IllegalStateException("No free raster");
+  }
+
+  // draw the given snapshot of the given game into a new scene
+  static WorldScene compose(LightEmAll game, BoardSnapshot snapshot) {
+    WorldScene world = game.initWorld();
+    int size = snapshot.tileSize;
+    for (int row = 0; row < snapshot.height; row++) {
+      for (int col = 0; col < snapshot.width; col++) {
+        int index = row * snapshot.width + col;
+        world.placeImageXY(GamePiece.tileImage(snapshot.masks[index], size, 5,
+                LightEmAll.gradient(snapshot.dist[index], snapshot.radius),
+                snapshot.isStation(index)),
+            col * size + size / 2, row * size + size / 2);
+      }
+    }
+    if (snapshot.won) {
+      game.gameOver(world);
+    }
+    return world;
+  }
+}
+
+// examples for rendering in the background
+class ExamplesRenderPipeline {
+  // wait up to five seconds for the given condition, returning whether it held
+  boolean await(java.util.function.BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+      Thread.sleep(10);
+    }
+    return condition.getAsBoolean();
+  }
+
+  // tests that snapshots don't change with the board
+  void testSnapshot(Tester t) {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.processInput();
+    BoardSnapshot before = game.snapshot();
+    int mask = before.masks[4];
+    game.rotateTile(1, 1);
+    game.processInput();
+    BoardSnapshot after = game.snapshot();
+    t.checkExpect((int) before.masks[4], mask);
+    t.checkExpect((int) after.masks[4], game.nodes.get(4).mask());
+    t.checkExpect(after.version, before.version + 1);
+    t.checkExpect(before.isStation(game.indexOf(game.stations.get(0))), true);
+  }
+
+  // tests that input is applied and drawn by the worker
+  void testPipeline(Tester t) throws InterruptedException {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.startRendering();
+    RenderPipeline pipeline = game.pipeline;
+    t.checkExpect(await(() -> pipeline.frames == 1), true);
+    int mask = pipeline.snapshot.masks[0];
+
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    t.checkExpect(await(() -> pipeline.snapshot.moves == 1), true);
+    GamePiece rotated = new GamePiece(0, 0);
+    rotated.setMask(mask);
+    rotated.rotate();
+    t.checkExpect((int) pipeline.snapshot.masks[0], rotated.mask());
+    t.checkExpect(game.makeScene() == pipeline.front, true);
+    // ticks leave the board to the worker
+    game.onTick();
+    pipeline.stop();
+  }
+
+  // tests that the raster images take turns as the back buffer
+  void testRasterPipeline(Tester t) throws InterruptedException {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.useRasterBackend();
+    game.startRendering();
+    RenderPipeline pipeline = game.pipeline;
+    t.checkExpect(await(() -> pipeline.frames == 1), true);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    t.checkExpect(await(() -> pipeline.frames == 2), true);
+    // both images were painted in full once
+    t.checkExpect(pipeline.rasters[0].repainted, 9);
+    t.checkExpect(pipeline.rasters[1].repainted, 9);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    t.checkExpect(await(() -> pipeline.frames == 3), true);
+    t.checkExpect(pipeline.rasters[0].repainted < 9, true);
+    pipeline.stop();
+  }
+
+  // tests that the raster the event thread took is left alone until it takes another
+  void testRasterHandshake(Tester t) throws InterruptedException {
+    LightEmAll game = new LightEmAll(3, 3, 4);
+    game.useRasterBackend();
+    game.startRendering();
+    RenderPipeline pipeline = game.pipeline;
+    t.checkExpect(await(() -> pipeline.frames == 1), true);
+    WorldScene shown = game.makeScene();
+    t.checkExpect(pipeline.shownRaster, pipeline.rasters[0]);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    t.checkExpect(await(() -> pipeline.frames == 2), true);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    t.checkExpect(await(() -> pipeline.frames == 3), true);
+    // the two new frames went to the other images
+    t.checkExpect(pipeline.rasters[1].repainted, 9);
+    t.checkExpect(pipeline.rasters[2].repainted, 9);
+    t.checkExpect(pipeline.frontRaster, pipeline.rasters[2]);
+    // taking the next frame frees the first image again
+    t.checkExpect(game.makeScene() == shown, false);
+    t.checkExpect(pipeline.freeRaster(), pipeline.rasters[0]);
+    pipeline.stop();
+  }
+}
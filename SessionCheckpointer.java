@@ -0,0 +1,572 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import tester.*;
+
+// periodically writes the boards of live sessions to append-only segment files,
+// so a restarted server can pick up every game where the players left it.
+// the game loop only marks sessions dirty; a background flusher has each dirty
+// board encoded by its session's writer, appends the records of every session in
+// one write with a single fsync, and compacts old segments down to the latest
+// record of each session
+//
+// each record is framed as int length, payload, int crc32 of the payload, and
+// the payload is long session, int width (0 once the session is closed),
+// int height, int moves, int radius, int active station, int station count,
+// the tile index of each station, then the wire masks, two tiles per byte
+class SessionCheckpointer {
+  static final String PREFIX = "segment-";
+  static final String SUFFIX = ".log";
+
+  SessionRegistry sessions;
+  File dir;
+  // roll over to a new segment once the active one is this large
+  long segmentBytes;
+  // compact once there are more closed segments than this
+  int maxSegments;
+  long intervalMillis;
+
+  // encoded records waiting for the next flush
+  ConcurrentLinkedQueue<byte[]> ready;
+  FileChannel active;
+  long activeId;
+  Thread flusher;
+  volatile boolean running;
+  // how many records and fsyncs have been written, for reporting
+  long records;
+  long syncs;
+  // how many background flushes have failed, and the most recent failure
+  volatile long failures;
+  volatile Exception lastFailure;
+
+  SessionCheckpointer(File dir, SessionRegistry sessions, long segmentBytes, int maxSegments,
+                      long intervalMillis) throws IOException {
+    this.dir = dir;
+    this.sessions = sessions;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    this.intervalMillis = intervalMillis;
+    this.ready = new ConcurrentLinkedQueue<>();
+    Files.createDirectories(dir.toPath());
+    ArrayList<Long> ids = segmentIds(dir);
+    // never append to a segment left by an earlier run, its tail may be torn
+    openSegment(ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1);
+  }
+
+  SessionCheckpointer(File dir, SessionRegistry sessions) throws IOException {
+    this(dir, sessions, 64L << 20, 8, 1000);
+  }
+
+  // start flushing in the background
+  void start() {
+    running = true;
+    flusher = new Thread(this::flushLoop, "light-em-checkpointer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  // flush every interval until stopped
+  void flushLoop() {
+    while (running) {
+      try {
+        Thread.sleep(intervalMillis);
+      }
+      catch (InterruptedException e) {
+        // stop() wants a last flush right away
+      }
+      try {
+        flushOnce();
+      }
+      catch (IOException | RuntimeException e) {
+        lastFailure = e;
+        failures += 1;
+      }
+    }
+  }
+
+  // stop the flusher, write whatever is still pending and close the segment
+  void stop() throws IOException, InterruptedException {
+    running = false;
+    flusher.interrupt();
+    flusher.join();
+    flushOnce();
+    active.close();
+  }
+
+  // record that the given session was closed, after anything already queued on it
+  void closed(GameSession session) {
+    session.post(game -> ready.add(tombstone(session.id)));
+  }
+
+  // have every dirty session encode its board, then append all the records
+  // that are ready in one write followed by one fsync
+  void flushOnce() throws IOException {
+    encodeDirty(sessions.all());
+    ArrayList<ByteBuffer> batch = new ArrayList<>();
+    byte[] record = ready.poll();
+    while (record != null) {
+      batch.add(ByteBuffer.wrap(record));
+      record = ready.poll();
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    while (remaining > 0) {
+      remaining -= active.write(buffers);
+    }
+    active.force(false);
+    records += buffers.length;
+    syncs += 1;
+
+    if (segmentBytes <= active.size()) {
+      active.close();
+      openSegment(activeId + 1);
+      if (maxSegments < segmentIds(dir).size() - 1) {
+        compact();
+      }
+    }
+  }
+
+  // have each dirty session in the given snapshot encode its board. a session
+  // closed since the snapshot was taken may already have queued its tombstone,
+  // so one that has left the registry by the time the encode runs is skipped
+  void encodeDirty(ArrayList<GameSession> snapshot) {
+    for (GameSession session : snapshot) {
+      if (session.dirty.getAndSet(false)) {
+        session.post(game -> {
+          if (sessions.get(session.id) == session) {
+            ready.add(encode(session.id, game));
+          }
+        });
+      }
+    }
+  }
+
+  // start appending to the segment with the given id
+  void openSegment(long id) throws IOException {
+    activeId = id;
+    active = FileChannel.open(segment(dir, id).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    syncDirectory(dir);
+  }
+
+  // make the files created, renamed or deleted in the given directory durable
+  static void syncDirectory(File dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  // rewrite every closed segment into one that holds only the latest record of
+  // each session. the result replaces the newest closed segment before the older
+  // ones are deleted, so a crash part way loses nothing. a closed session keeps
+  // its tombstone while an older segment still holds a board for it, or a crash
+  // before that segment is deleted would bring the session back
+  void compact() throws IOException {
+    ArrayList<Long> ids = segmentIds(dir);
+    ids.remove(activeId);
+    if (ids.size() < 2) {
+      return;
+    }
+    long last = ids.get(ids.size() - 1);
+    LinkedHashMap<Long, byte[]> latest = new LinkedHashMap<>();
+    // the sessions with a board in a segment about to be deleted
+    HashSet<Long> older = new HashSet<>();
+    for (long id : ids) {
+      for (byte[] payload : readSegment(segment(dir, id))) {
+        long session = ByteBuffer.wrap(payload).getLong();
+        latest.remove(session);
+        if (!isTombstone(payload)) {
+          latest.put(session, payload);
+          if (id != last) {
+            older.add(session);
+          }
+        }
+        else if (older.contains(session)) {
+          latest.put(session, payload);
+        }
+      }
+    }
+    Path temp = new File(dir, PREFIX + last + ".compact").toPath();
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (byte[] payload : latest.values()) {
+        ByteBuffer frame = ByteBuffer.wrap(frame(payload));
+        while (frame.hasRemaining()) {
+          out.write(frame);
+        }
+      }
+      out.force(true);
+    }
+    Files.move(temp, segment(dir, last).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(dir);
+    for (long id : ids) {
+      if (id != last) {
+        Files.delete(segment(dir, id).toPath());
+      }
+    }
+    syncDirectory(dir);
+  }
+
+  // the file of the segment with the given id
+  static File segment(File dir, long id) {
+    return new File(dir, String.format("%s%010d%s", PREFIX, id, SUFFIX));
+  }
+
+  // the ids of all segments in the given directory, oldest first
+  static ArrayList<Long> segmentIds(File dir) {
+    ArrayList<Long> ids = new ArrayList<>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          ids.add(Long.parseLong(name.substring(PREFIX.length(),
+              name.length() - SUFFIX.length())));
+        }
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  // the payloads of all intact records in the given segment, in order.
+  // reading stops at the first torn or corrupt record
+  static ArrayList<byte[]> readSegment(File file) throws IOException {
+    ArrayList<byte[]> payloads = new ArrayList<>();
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    CRC32 crc = new CRC32();
+    while (bytes.remaining() >= 4) {
+      int length = bytes.getInt();
+      if (length < 8 || bytes.remaining() < length + 4) {
+        break;
+      }
+      byte[] payload = new byte[length];
+      bytes.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != bytes.getInt()) {
+        break;
+      }
+      payloads.add(payload);
+    }
+    return payloads;
+  }
+
+  // the framed record of the given session's board
+  static byte[] encode(long session, LightEmAll game) {
+    int tiles = game.nodes.size();
+    ByteBuffer payload = ByteBuffer.allocate(8 + 4 * 7 + 4 * game.stations.size()
+        + (tiles + 1) / 2);
+    payload.putLong(session);
+    payload.putInt(game.width);
+    payload.putInt(game.height);
+    payload.putInt(game.moves);
+    payload.putInt(game.radius);
+    payload.putInt(game.activeStation);
+    payload.putInt(game.stations.size());
+    for (GamePiece station : game.stations) {
+      payload.putInt(game.indexOf(station));
+    }
+    for (int i = 0; i < tiles; i += 2) {
+      int low = game.nodes.get(i).mask();
+      int high = i + 1 < tiles ? game.nodes.get(i + 1).mask() : 0;
+      payload.put((byte) (low | (high << 4)));
+    }
+    return frame(payload.array());
+  }
+
+  // the framed record saying the given session was closed
+  static byte[] tombstone(long session) {
+    return frame(ByteBuffer.allocate(12).putLong(session).putInt(0).array());
+  }
+
+  // is the given payload a tombstone?
+  static boolean isTombstone(byte[] payload) {
+    return ByteBuffer.wrap(payload).getInt(8) == 0;
+  }
+
+  // add the length and checksum around the given payload
+  static byte[] frame(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return ByteBuffer.allocate(payload.length + 8).putInt(payload.length).put(payload)
+        .putInt((int) crc.getValue()).array();
+  }
+
+  // the board stored in the given (non-tombstone) payload
+  static LightEmAll decode(byte[] payload) {
+    ByteBuffer bytes = ByteBuffer.wrap(payload);
+    bytes.getLong();
+    int width = bytes.getInt();
+    int height = bytes.getInt();
+    int moves = bytes.getInt();
+    int radius = bytes.getInt();
+    int activeStation = bytes.getInt();
+    int[] stations = new int[bytes.getInt()];
+    for (int i = 0; i < stations.length; i++) {
+      stations[i] = bytes.getInt();
+    }
+    int[] masks = new int[width * height];
+    for (int i = 0; i < masks.length; i += 2) {
+      int packed = bytes.get() & 0xFF;
+      masks[i] = packed & 15;
+      if (i + 1 < masks.length) {
+        masks[i + 1] = packed >> 4;
+      }
+    }
+    return new LightEmAll(width, height, masks, stations, activeStation, radius, moves);
+  }
+
+  // add the latest checkpoint of every session in the given directory to the
+  // given registry, rebuilding boards on all cores, and return how many there were
+  static int recover(File dir, SessionRegistry sessions) throws IOException {
+    HashMap<Long, byte[]> latest = new HashMap<>();
+    for (long id : segmentIds(dir)) {
+      for (byte[] payload : readSegment(segment(dir, id))) {
+        long session = ByteBuffer.wrap(payload).getLong();
+        if (isTombstone(payload)) {
+          latest.remove(session);
+        }
+        else {
+          latest.put(session, payload);
+        }
+      }
+    }
+    latest.entrySet().parallelStream().forEach(entry -> {
+      GameSession session = new GameSession(entry.getKey(), decode(entry.getValue()));
+      // it is already on disk as it is
+      session.dirty.set(false);
+      sessions.add(session);
+    });
+    return latest.size();
+  }
+
+  // usage: SessionCheckpointer [sessions] [board size]
+  // checkpoints that many boards to a temporary directory and times recovering them
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    File dir = Files.createTempDirectory("light-em-checkpoints").toFile();
+    SessionRegistry sessions = new SessionRegistry();
+    Random rand = new Random(0);
+    int[] masks = new int[size * size];
+    for (int i = 0; i < count; i++) {
+      for (int k = 0; k < masks.length; k++) {
+        masks[k] = rand.nextInt(16);
+      }
+      sessions.create(new LightEmAll(size, size, masks, new int[] {0}, 0, size, i));
+    }
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions);
+    long start = System.nanoTime();
+    checkpointer.flushOnce();
+    System.out.printf("Wrote %d sessions with %d fsync in %.2fs%n", checkpointer.records,
+        checkpointer.syncs, (System.nanoTime() - start) / 1e9);
+    checkpointer.active.close();
+
+    start = System.nanoTime();
+    int recovered = recover(dir, new SessionRegistry());
+    System.out.printf("Recovered %d sessions in %.2fs%n", recovered,
+        (System.nanoTime() - start) / 1e9);
+    for (long id : segmentIds(dir)) {
+      Files.delete(segment(dir, id).toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+}
+
+// examples for checkpointing sessions
+class ExamplesSessionCheckpointer {
+  File dir;
+  SessionRegistry sessions;
+
+  // a fresh registry with three games and an empty checkpoint directory
+  void init() throws IOException {
+    dir = Files.createTempDirectory("light-em-checkpoints").toFile();
+    sessions = new SessionRegistry();
+    for (int i = 0; i < 3; i++) {
+      sessions.create(new LightEmAll(4, 3, 2, new Random(i)));
+    }
+  }
+
+  // delete the checkpoint directory
+  void cleanUp() throws IOException {
+    for (long id : SessionCheckpointer.segmentIds(dir)) {
+      Files.delete(SessionCheckpointer.segment(dir, id).toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  // rotate a tile of the given session the way the server does
+  void rotate(GameSession session, int tile) {
+    session.call(game -> {
+      game.input.rotate(tile);
+      game.processInput();
+      session.dirty.set(true);
+      return null;
+    });
+  }
+
+  // check that the recovered sessions match the live ones
+  void checkRecovered(Tester t, SessionRegistry recovered) {
+    t.checkExpect(recovered.size(), sessions.size());
+    for (GameSession session : sessions.all()) {
+      LightEmAll live = session.game;
+      LightEmAll restored = recovered.get(session.id).game;
+      t.checkExpect(restored.moves, live.moves);
+      t.checkExpect(restored.radius, live.radius);
+      t.checkExpect(restored.activeStation, live.activeStation);
+      for (int i = 0; i < live.nodes.size(); i++) {
+        t.checkExpect(restored.nodes.get(i).mask(), live.nodes.get(i).mask());
+        t.checkExpect(restored.nodes.get(i).powerStation, live.nodes.get(i).powerStation);
+      }
+    }
+  }
+
+  // tests a round trip through a checkpoint
+  void testRecover(Tester t) throws Exception {
+    init();
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions);
+    checkpointer.flushOnce();
+    t.checkExpect(checkpointer.records, 3L);
+    t.checkExpect(checkpointer.syncs, 1L);
+
+    rotate(sessions.get(2), 5);
+    rotate(sessions.get(2), 6);
+    checkpointer.flushOnce();
+    // only the session that changed is written again
+    t.checkExpect(checkpointer.records, 4L);
+
+    GameSession closed = sessions.remove(3);
+    checkpointer.closed(closed);
+    checkpointer.flushOnce();
+    checkpointer.active.close();
+
+    SessionRegistry recovered = new SessionRegistry();
+    t.checkExpect(SessionCheckpointer.recover(dir, recovered), 2);
+    checkRecovered(t, recovered);
+    t.checkExpect(recovered.get(3), null);
+    cleanUp();
+  }
+
+  // tests that compaction keeps only the latest record of each session
+  void testCompact(Tester t) throws Exception {
+    init();
+    // tiny segments, so every flush rolls over to a new one
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions, 1, 2, 1000);
+    for (int i = 0; i < 10; i++) {
+      for (GameSession session : sessions.all()) {
+        rotate(session, i);
+      }
+      checkpointer.flushOnce();
+    }
+    checkpointer.active.close();
+    t.checkExpect(SessionCheckpointer.segmentIds(dir).size() <= 4, true);
+
+    SessionRegistry recovered = new SessionRegistry();
+    SessionCheckpointer.recover(dir, recovered);
+    checkRecovered(t, recovered);
+    cleanUp();
+  }
+
+  // tests that a crash between compacting and deleting the older segments
+  // does not bring back a closed session
+  void testCompactCrash(Tester t) throws Exception {
+    init();
+    // every flush rolls over, but nothing compacts on its own
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions, 1, 100, 1000);
+    checkpointer.flushOnce();
+    checkpointer.closed(sessions.remove(3));
+    checkpointer.flushOnce();
+    File oldest = SessionCheckpointer.segment(dir, 0);
+    byte[] before = Files.readAllBytes(oldest.toPath());
+    checkpointer.compact();
+    checkpointer.active.close();
+    t.checkExpect(oldest.exists(), false);
+    // put the oldest segment back as if the crash came before its delete
+    Files.write(oldest.toPath(), before);
+
+    SessionRegistry recovered = new SessionRegistry();
+    t.checkExpect(SessionCheckpointer.recover(dir, recovered), 2);
+    t.checkExpect(recovered.get(3), null);
+    cleanUp();
+  }
+
+  // tests that a record torn by a crash is ignored
+  void testTornRecord(Tester t) throws Exception {
+    init();
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions);
+    checkpointer.flushOnce();
+    rotate(sessions.get(1), 0);
+    checkpointer.flushOnce();
+    checkpointer.active.close();
+    File file = SessionCheckpointer.segment(dir, checkpointer.activeId);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    SessionRegistry recovered = new SessionRegistry();
+    t.checkExpect(SessionCheckpointer.recover(dir, recovered), 3);
+    // the rotation was lost with the torn record
+    t.checkExpect(recovered.get(1).game.moves, 0);
+    cleanUp();
+  }
+
+  // tests that a session closed between taking the snapshot and encoding its
+  // board is not written again after its tombstone
+  void testCloseDuringFlush(Tester t) throws Exception {
+    init();
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions);
+    checkpointer.flushOnce();
+    rotate(sessions.get(3), 4);
+    ArrayList<GameSession> snapshot = sessions.all();
+    checkpointer.closed(sessions.remove(3));
+    checkpointer.encodeDirty(snapshot);
+    checkpointer.flushOnce();
+    checkpointer.active.close();
+
+    SessionRegistry recovered = new SessionRegistry();
+    t.checkExpect(SessionCheckpointer.recover(dir, recovered), 2);
+    t.checkExpect(recovered.get(3), null);
+    cleanUp();
+  }
+
+  // tests that the background flusher writes checkpoints on its own
+  void testFlusher(Tester t) throws Exception {
+    init();
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions, 1 << 20, 8, 10);
+    checkpointer.start();
+    rotate(sessions.get(1), 2);
+    checkpointer.stop();
+    SessionRegistry recovered = new SessionRegistry();
+    SessionCheckpointer.recover(dir, recovered);
+    checkRecovered(t, recovered);
+    cleanUp();
+  }
+
+  // tests that a failed background flush is counted instead of printed
+  void testFlusherFailure(Tester t) throws Exception {
+    init();
+    SessionCheckpointer checkpointer = new SessionCheckpointer(dir, sessions, 1 << 20, 8, 10);
+    checkpointer.active.close();
+    checkpointer.start();
+    while (checkpointer.failures == 0) {
+      Thread.sleep(10);
+    }
+    checkpointer.running = false;
+    checkpointer.flusher.interrupt();
+    checkpointer.flusher.join();
+    t.checkExpect(checkpointer.lastFailure instanceof ClosedChannelException, true);
+    cleanUp();
+  }
+}
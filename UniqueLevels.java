@@ -0,0 +1,736 @@
+import java.util.*;
+
+import tester.*;
+
+// counts the solutions of a board, stopping at two. a solution turns every
+// tile so that each of its wires meets a wire of the neighboring tile, and the
+// wires join all the tiles into one tree (the wiring a board is generated with
+// is always one, and on a board with one station these are exactly the ways to
+// power every tile). each tile keeps the set of masks it may still be turned
+// to as 16 bits, one per mask, so narrowing it down is a single and. whether
+// a wire crosses the edge between two tiles is settled as soon as every mask
+// left on one side agrees, which narrows down the other side. settled wires
+// join their tiles in a union-find, which catches a wire that would close a
+// loop, and a group of joined tiles with no unsettled edges left that isn't
+// the whole board. everything, the union-find included, is undone from a trail
+// when the search backtracks, so the union-find never compresses paths
+class BoardSolver {
+  // the sets of masks that have a wire going in each direction
+  static final int[] HAS = new int[4];
+  static final int ALL = 0xFFFF;
+  // what an edge between two tiles may be
+  static final int UNSETTLED = 0;
+  static final int WIRED = 1;
+  static final int EMPTY = 2;
+  // what a trail entry undoes
+  static final int DOMAIN = 0;
+  static final int EDGE = 1;
+  static final int UNION = 2;
+
+  static {
+    for (int mask = 0; mask < 16; mask++) {
+      for (int dir = 0; dir < 4; dir++) {
+        if ((mask & (1 << dir)) != 0) {
+          HAS[dir] |= 1 << mask;
+        }
+      }
+    }
+  }
+
+  int width;
+  int height;
+  int tiles;
+  // the masks each tile may still be turned to
+  int[] domain;
+  // the edge to the right of tile t is edge 2t, and the one below it is 2t + 1
+  int[] edge;
+  // the union-find over settled wires: parents, sizes, and how many
+  // unsettled edges touch each group, at its root
+  int[] parent;
+  int[] size;
+  int[] open;
+  // the tiles whose domains changed and whose edges need another look
+  int[] queue;
+  boolean[] queued;
+  int head;
+  int count;
+  // what to undo when backtracking
+  int[] trailKind;
+  int[] trailA;
+  int[] trailB;
+  int trailSize;
+  // the solutions found so far, as masks
+  int solutions;
+  int[] first;
+  int[] second;
+  // how many search nodes the last count took, and how many it may take
+  long nodes;
+  long budget;
+
+  BoardSolver(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.tiles = width * height;
+    this.domain = new int[tiles];
+    this.edge = new int[2 * tiles];
+    this.parent = new int[tiles];
+    this.size = new int[tiles];
+    this.open = new int[tiles];
+    this.queue = new int[tiles];
+    this.queued = new boolean[tiles];
+    this.trailKind = new int[8 * tiles];
+    this.trailA = new int[8 * tiles];
+    this.trailB = new int[8 * tiles];
+    this.first = new int[tiles];
+    this.second = new int[tiles];
+    this.budget = 100000;
+  }
+
+  // the set of masks the given mask can be turned to
+  static int turns(int mask) {
+    int set = 0;
+    for (int turn = 0; turn < 4; turn++) {
+      set |= 1 << mask;
+      mask = GamePiece.rotated(mask);
+    }
+    return set;
+  }
+
+  // how many ways there are to turn the tiles of a board wired with the given
+  // masks into a solution: 0, 1 or 2 (meaning at least two), or -1 if the
+  // search ran out of budget before it could tell
+  int count(int[] masks) {
+    trailSize = 0;
+    solutions = 0;
+    nodes = 0;
+    head = 0;
+    count = 0;
+    Arrays.fill(edge, UNSETTLED);
+    for (int index = 0; index < tiles; index++) {
+      int row = index / width;
+      int col = index % width;
+      int allowed = ALL;
+      int neighbors = 0;
+      for (int dir = 0; dir < 4; dir++) {
+        if (neighbor(row, col, dir) == -1) {
+          allowed &= ~HAS[dir];
+        }
+        else {
+          neighbors += 1;
+        }
+      }
+      domain[index] = turns(masks[index]) & allowed;
+      parent[index] = index;
+      size[index] = 1;
+      open[index] = neighbors;
+      enqueue(index);
+    }
+    for (int index = 0; index < tiles; index++) {
+      if (domain[index] == 0) {
+        clearQueue();
+        return 0;
+      }
+    }
+    if (propagate()) {
+      search(0);
+    }
+    else {
+      clearQueue();
+    }
+    if (solutions < 2 && budget < nodes) {
+      return -1;
+    }
+    return solutions;
+  }
+
+  // the index of the tile next to the given position in the given direction,
+  // or -1 at the edge of the board
+  int neighbor(int row, int col, int dir) {
+    if (dir == GamePiece.TOP) {
+      return row == 0 ? -1 : (row - 1) * width + col;
+    }
+    else if (dir == GamePiece.BOTTOM) {
+      return row == height - 1 ? -1 : (row + 1) * width + col;
+    }
+    else if (dir == GamePiece.LEFT) {
+      return col == 0 ? -1 : row * width + col - 1;
+    }
+    else {
+      return col == width - 1 ? -1 : row * width + col + 1;
+    }
+  }
+
+  // the edge between the tile at the given index and its neighbor in the given direction
+  int edgeOf(int index, int dir) {
+    if (dir == GamePiece.TOP) {
+      return 2 * (index - width) + 1;
+    }
+    else if (dir == GamePiece.BOTTOM) {
+      return 2 * index + 1;
+    }
+    else if (dir == GamePiece.LEFT) {
+      return 2 * (index - 1);
+    }
+    else {
+      return 2 * index;
+    }
+  }
+
+  // try each mask left for the first undecided tile at or after the given
+  // one, recording the solutions found, until there are two
+  void search(int from) {
+    nodes += 1;
+    int index = from;
+    while (index < tiles && Integer.bitCount(domain[index]) == 1) {
+      index += 1;
+    }
+    if (index == tiles) {
+      int[] solution = solutions == 0 ? first : second;
+      for (int tile = 0; tile < tiles; tile++) {
+        solution[tile] = Integer.numberOfTrailingZeros(domain[tile]);
+      }
+      solutions += 1;
+      return;
+    }
+    int options = domain[index];
+    while (options != 0 && solutions < 2 && nodes <= budget) {
+      int option = options & -options;
+      options -= option;
+      int mark = trailSize;
+      if (restrict(index, option) && propagate()) {
+        search(index + 1);
+      }
+      else {
+        clearQueue();
+      }
+      undo(mark);
+    }
+  }
+
+  // settle every edge that the domains on either side of it allow,
+  // returning false if that leaves some tile with no masks
+  boolean propagate() {
+    while (count != 0) {
+      int index = queue[head];
+      head = (head + 1) % tiles;
+      count -= 1;
+      queued[index] = false;
+      int row = index / width;
+      int col = index % width;
+      for (int dir = 0; dir < 4; dir++) {
+        int next = neighbor(row, col, dir);
+        if (next == -1 || edge[edgeOf(index, dir)] != UNSETTLED) {
+          continue;
+        }
+        boolean wired = (domain[index] & HAS[dir]) != 0;
+        boolean empty = (domain[index] & ~HAS[dir] & ALL) != 0;
+        if (wired && empty) {
+          // a wire here would close a loop
+          if (find(index) == find(next) && !settle(index, next, dir, false)) {
+            return false;
+          }
+        }
+        else if (!settle(index, next, dir, wired)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // settle whether a wire joins the tile at the given index to its neighbor
+  // in the given direction, returning false if that can't lead to a solution
+  boolean settle(int index, int next, int dir, boolean wired) {
+    int edgeIndex = edgeOf(index, dir);
+    push(EDGE, edgeIndex, 0);
+    edge[edgeIndex] = wired ? WIRED : EMPTY;
+    int root = find(index);
+    int nextRoot = find(next);
+    open[root] -= 1;
+    open[nextRoot] -= 1;
+    int side = wired ? HAS[dir] : ALL & ~HAS[dir];
+    int otherSide = wired ? HAS[GamePiece.opposite(dir)] : ALL & ~HAS[GamePiece.opposite(dir)];
+    if (!restrict(index, side) || !restrict(next, otherSide)) {
+      return false;
+    }
+    if (wired) {
+      if (root == nextRoot) {
+        return false;
+      }
+      root = union(root, nextRoot);
+    }
+    else if (open[nextRoot] == 0 && size[nextRoot] < tiles) {
+      return false;
+    }
+    return open[root] != 0 || size[root] == tiles;
+  }
+
+  // narrow down the masks of the tile at the given index to the given set,
+  // returning false if none are left
+  boolean restrict(int index, int allowed) {
+    int narrowed = domain[index] & allowed;
+    if (narrowed == domain[index]) {
+      return true;
+    }
+    if (narrowed == 0) {
+      return false;
+    }
+    push(DOMAIN, index, domain[index]);
+    domain[index] = narrowed;
+    enqueue(index);
+    return true;
+  }
+
+  // the root of the group of the tile at the given index
+  int find(int index) {
+    while (parent[index] != index) {
+      index = parent[index];
+    }
+    return index;
+  }
+
+  // join the groups with the given roots, the smaller under the larger,
+  // returning the root of the joined group
+  int union(int root, int other) {
+    if (size[root] < size[other]) {
+      int swap = root;
+      root = other;
+      other = swap;
+    }
+    push(UNION, other, root);
+    parent[other] = root;
+    size[root] += size[other];
+    open[root] += open[other];
+    return root;
+  }
+
+  // add the tile at the given index to the queue, if it isn't on it
+  void enqueue(int index) {
+    if (!queued[index]) {
+      queued[index] = true;
+      queue[(head + count) % tiles] = index;
+      count += 1;
+    }
+  }
+
+  // empty the queue after a contradiction
+  void clearQueue() {
+    while (count != 0) {
+      queued[queue[head]] = false;
+      head = (head + 1) % tiles;
+      count -= 1;
+    }
+  }
+
+  // record something to undo, growing the trail if needed
+  void push(int kind, int a, int b) {
+    if (trailSize == trailKind.length) {
+      trailKind = Arrays.copyOf(trailKind, trailSize * 2);
+      trailA = Arrays.copyOf(trailA, trailSize * 2);
+      trailB = Arrays.copyOf(trailB, trailSize * 2);
+    }
+    trailKind[trailSize] = kind;
+    trailA[trailSize] = a;
+    trailB[trailSize] = b;
+    trailSize += 1;
+  }
+
+  // undo everything recorded since the trail had the given size
+  void undo(int mark) {
+    while (mark < trailSize) {
+      trailSize -= 1;
+      int a = trailA[trailSize];
+      int b = trailB[trailSize];
+      if (trailKind[trailSize] == DOMAIN) {
+        domain[a] = b;
+      }
+      else if (trailKind[trailSize] == UNION) {
+        parent[a] = a;
+        size[b] -= size[a];
+        open[b] -= open[a];
+      }
+      else {
+        edge[a] = UNSETTLED;
+        int index = a / 2;
+        open[find(index)] += 1;
+        open[find(a % 2 == 0 ? index + 1 : index + width)] += 1;
+      }
+    }
+  }
+}
+
+// generates levels with exactly one solution. it starts from a random
+// spanning tree, like makeBoard, and asks a BoardSolver whether there is
+// another way to turn the tiles that also solves it. if there is, only the
+// wiring around the tiles left in doubt is redrawn, rather than the whole
+// board: the tree's edges inside a small window around each of them are
+// dropped, which splits the tree into pieces that all reach into a window,
+// and random edges inside each window join them up again. the windows grow
+// while the repairs leave as many tiles in doubt as before, so a stubborn
+// ambiguity is eventually redrawn as a whole
+class UniqueLevels {
+  int width;
+  int height;
+  Random rand;
+  BoardSolver solver;
+  // the union-find used to draw and redraw trees
+  int[] parent;
+  // the edges that may be drawn, shuffled
+  int[] edges;
+  // the tiles in doubt after the last count, the repair that last covered
+  // each tile with a window, and the windows of the current repair, as
+  // top, left, bottom and right
+  int[] ambiguous;
+  int[] covered;
+  int[] windows;
+  // how many levels have been made, and how many repairs they took
+  int levels;
+  int repairs;
+
+  UniqueLevels(int width, int height, Random rand) {
+    this.width = width;
+    this.height = height;
+    this.rand = rand;
+    this.solver = new BoardSolver(width, height);
+    this.parent = new int[width * height];
+    this.edges = new int[2 * width * height];
+    this.ambiguous = new int[width * height];
+    this.covered = new int[width * height];
+    this.windows = new int[4 * width * height];
+  }
+
+  // a new level with one station, scrambled, whose wiring has exactly one
+  // solution. the solver only counts the wirings that join every tile into one
+  // tree, which are the ways to power a board from a single station; with more
+  // stations, a forest with a station in each tree would power the board too,
+  // so those levels could not be promised a unique solution
+  LightEmAll level() {
+    int[] masks = uniqueMasks();
+    int[] stations = new int[] {rand.nextInt(masks.length)};
+    int radius = longestPath(masks, 0) / 2;
+    for (int index = 0; index < masks.length; index++) {
+      for (int turn = rand.nextInt(4); 0 < turn; turn--) {
+        masks[index] = GamePiece.rotated(masks[index]);
+      }
+    }
+    return new LightEmAll(width, height, masks, stations, 0, radius, 0);
+  }
+
+  // the solved masks of a random spanning tree with exactly one solution
+  int[] uniqueMasks() {
+    int[] masks = randomTree();
+    int reach = 2;
+    int lastFound = Integer.MAX_VALUE;
+    int count = solver.count(masks);
+    while (count != 1) {
+      int found = findAmbiguous(count);
+      // widen the windows while the repairs aren't getting anywhere
+      reach = found < lastFound ? 2 : Math.min(reach + 1, Math.max(width, height));
+      lastFound = found;
+      redraw(masks, found, reach);
+      repairs += 1;
+      count = solver.count(masks);
+    }
+    levels += 1;
+    return masks;
+  }
+
+  // list the tiles the last count left in doubt in ambiguous, in a random
+  // order, returning how many there are: those two solutions turn differently,
+  // and those edge consistency alone couldn't settle (which covers every
+  // ambiguity, though some of them turn out to have only one solution)
+  int findAmbiguous(int count) {
+    int found = 0;
+    for (int index = 0; index < width * height; index++) {
+      if (Integer.bitCount(solver.domain[index]) != 1
+          || count == 2 && solver.first[index] != solver.second[index]) {
+        int swap = rand.nextInt(found + 1);
+        ambiguous[found] = ambiguous[swap];
+        ambiguous[swap] = index;
+        found += 1;
+      }
+    }
+    return found;
+  }
+
+  // the masks of a random spanning tree of the board
+  int[] randomTree() {
+    for (int index = 0; index < parent.length; index++) {
+      parent[index] = index;
+    }
+    int[] masks = new int[width * height];
+    join(masks, 0, 0, height, width);
+    return masks;
+  }
+
+  // redraw the wiring within the given distance of the first count tiles of
+  // ambiguous, skipping tiles that an earlier window already covers. the wires
+  // inside every window are dropped first, then the pieces the rest make are
+  // found, and then each window joins up the pieces that reach into it
+  void redraw(int[] masks, int count, int reach) {
+    int windowCount = 0;
+    for (int i = 0; i < count; i++) {
+      int center = ambiguous[i];
+      if (covered[center] == repairs + 1) {
+        continue;
+      }
+      int top = Math.max(0, center / width - reach);
+      int left = Math.max(0, center % width - reach);
+      int bottom = Math.min(height, center / width + reach + 1);
+      int right = Math.min(width, center % width + reach + 1);
+      windows[windowCount++] = top;
+      windows[windowCount++] = left;
+      windows[windowCount++] = bottom;
+      windows[windowCount++] = right;
+      for (int row = top; row < bottom; row++) {
+        for (int col = left; col < right; col++) {
+          int index = row * width + col;
+          covered[index] = repairs + 1;
+          if (col + 1 < right) {
+            masks[index] &= ~(1 << GamePiece.RIGHT);
+            masks[index + 1] &= ~(1 << GamePiece.LEFT);
+          }
+          if (row + 1 < bottom) {
+            masks[index] &= ~(1 << GamePiece.BOTTOM);
+            masks[index + width] &= ~(1 << GamePiece.TOP);
+          }
+        }
+      }
+    }
+    for (int index = 0; index < parent.length; index++) {
+      parent[index] = index;
+    }
+    for (int index = 0; index < parent.length; index++) {
+      if ((masks[index] & (1 << GamePiece.RIGHT)) != 0) {
+        parent[root(index)] = root(index + 1);
+      }
+      if ((masks[index] & (1 << GamePiece.BOTTOM)) != 0) {
+        parent[root(index)] = root(index + width);
+      }
+    }
+    for (int w = 0; w < windowCount; w += 4) {
+      join(masks, windows[w], windows[w + 1], windows[w + 2], windows[w + 3]);
+    }
+  }
+
+  // wire up random edges within the given window that join different
+  // pieces, as in Kruskal's algorithm with random weights, until no two
+  // pieces in the window are left to join
+  void join(int[] masks, int top, int left, int bottom, int right) {
+    int edgeCount = 0;
+    for (int row = top; row < bottom; row++) {
+      for (int col = left; col < right; col++) {
+        int index = row * width + col;
+        if (col + 1 < right) {
+          edges[edgeCount++] = 2 * index;
+        }
+        if (row + 1 < bottom) {
+          edges[edgeCount++] = 2 * index + 1;
+        }
+      }
+    }
+    for (int i = edgeCount - 1; 0 < i; i--) {
+      int j = rand.nextInt(i + 1);
+      int swap = edges[i];
+      edges[i] = edges[j];
+      edges[j] = swap;
+    }
+    for (int i = 0; i < edgeCount; i++) {
+      int index = edges[i] / 2;
+      boolean down = edges[i] % 2 == 1;
+      int next = down ? index + width : index + 1;
+      int root = root(index);
+      int nextRoot = root(next);
+      if (root != nextRoot) {
+        parent[root] = nextRoot;
+        masks[index] |= 1 << (down ? GamePiece.BOTTOM : GamePiece.RIGHT);
+        masks[next] |= 1 << (down ? GamePiece.TOP : GamePiece.LEFT);
+      }
+    }
+  }
+
+  // the root of the piece of the tile at the given index, halving the path to it
+  int root(int index) {
+    while (parent[index] != index) {
+      parent[index] = parent[parent[index]];
+      index = parent[index];
+    }
+    return index;
+  }
+
+  // the length of the longest path from the given tile, as findLongestPath
+  // measures it, found with a breadth first search instead of recursion
+  int longestPath(int[] masks, int from) {
+    int[] dist = new int[masks.length];
+    Arrays.fill(dist, -1);
+    int[] queue = new int[masks.length];
+    int tail = 0;
+    dist[from] = 0;
+    queue[tail++] = from;
+    int longest = 0;
+    for (int head = 0; head < tail; head++) {
+      int index = queue[head];
+      longest = dist[index];
+      for (int dir = 0; dir < 4; dir++) {
+        int next = solver.neighbor(index / width, index % width, dir);
+        if (next != -1 && dist[next] == -1 && (masks[index] & (1 << dir)) != 0) {
+          dist[next] = dist[index] + 1;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return longest;
+  }
+
+  // usage: UniqueLevels [size] [levels] [seed]
+  // generates a batch of size x size levels with one solution each,
+  // and reports how fast it went and how many repairs they took
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int levels = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+    UniqueLevels generator = new UniqueLevels(size, size, new Random(seed));
+    int ambiguous = 0;
+    for (int level = 0; level < levels; level++) {
+      if (generator.solver.count(generator.randomTree()) != 1) {
+        ambiguous += 1;
+      }
+    }
+    System.out.printf("%d of %d random %dx%d trees have more than one solution%n",
+        ambiguous, levels, size, size);
+    long start = System.nanoTime();
+    for (int level = 0; level < levels; level++) {
+      generator.level();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d unique levels in %.2f s: %.1f levels/s, %.1f repairs a level%n",
+        levels, seconds, levels / seconds, (double) generator.repairs / levels);
+  }
+}
+
+// examples for generating levels with one solution
+class ExamplesUniqueLevels {
+  // the masks of the given game, in row-major order
+  int[] masks(LightEmAll game) {
+    int[] masks = new int[game.nodes.size()];
+    for (int index = 0; index < masks.length; index++) {
+      masks[index] = game.nodes.get(index).mask();
+    }
+    return masks;
+  }
+
+  // how many ways there are to turn the tiles of a board with the given masks
+  // that solve it, found by trying them all (tiles turned to the same mask
+  // different ways count once)
+  int bruteForce(int width, int height, int[] masks) {
+    LightEmAll game = new LightEmAll(width, height, masks, new int[] {0}, 0, 1, 0);
+    HashSet<String> solutions = new HashSet<>();
+    int[] turns = new int[masks.length];
+    while (true) {
+      boolean wired = true;
+      for (int index = 0; index < masks.length && wired; index++) {
+        GamePiece tile = game.nodes.get(index);
+        for (int dir = 0; dir < 4; dir++) {
+          if (tile.hasWire(dir) && game.connectedIndex(tile, dir) == -1) {
+            wired = false;
+          }
+        }
+      }
+      game.updatePower();
+      if (wired && game.allPowered()) {
+        solutions.add(Arrays.toString(masks(game)));
+      }
+      // count up in base 4, turning the tiles to match
+      int index = 0;
+      while (index < masks.length && turns[index] == 3) {
+        turns[index] = 0;
+        game.nodes.get(index).rotate();
+        index += 1;
+      }
+      if (index == masks.length) {
+        return solutions.size();
+      }
+      turns[index] += 1;
+      game.nodes.get(index).rotate();
+    }
+  }
+
+  // tests turning masks
+  void testTurns(Tester t) {
+    // a wire going left turns to go up, as GamePiece.rotate turns it
+    GamePiece tile = new GamePiece(0, 0, true, false, false, false);
+    tile.rotate();
+    t.checkExpect(GamePiece.rotated(1 << GamePiece.LEFT), tile.mask());
+    // a straight wire has two ways to face, a cross just one
+    t.checkExpect(Integer.bitCount(BoardSolver.turns(0b0011)), 2);
+    t.checkExpect(Integer.bitCount(BoardSolver.turns(0b1111)), 1);
+    t.checkExpect(Integer.bitCount(BoardSolver.turns(0b0101)), 4);
+  }
+
+  // tests counting solutions against trying every way to turn the tiles
+  void testCount(Tester t) {
+    Random rand = new Random(2);
+    for (int round = 0; round < 40; round++) {
+      int width = 1 + rand.nextInt(3);
+      int height = 1 + rand.nextInt(9 / width);
+      UniqueLevels generator = new UniqueLevels(width, height, rand);
+      int[] masks = generator.randomTree();
+      int expected = Math.min(2, bruteForce(width, height, masks));
+      t.checkExpect(generator.solver.count(masks), expected);
+      t.checkExpect(1 <= expected, true);
+    }
+  }
+
+  // tests a board with two solutions
+  void testAmbiguous(Tester t) {
+    // a cross in the middle of a 3x3 board, a corner on each side of it and
+    // an end in each corner, which can all turn the other way like a pinwheel
+    int[] masks = {2, 10, 4, 9, 15, 6, 8, 5, 1};
+    BoardSolver solver = new BoardSolver(3, 3);
+    t.checkExpect(solver.count(masks), 2);
+    t.checkExpect(bruteForce(3, 3, masks), 2);
+    t.checkExpect(solver.first[4], 15);
+    t.checkExpect(Arrays.equals(solver.first, solver.second), false);
+    // a 3x1 board of a straight between two ends has only one
+    t.checkExpect(new BoardSolver(3, 1).count(new int[] {0b1000, 0b1100, 0b0100}), 1);
+    // and a board that can't be wired up has none
+    t.checkExpect(new BoardSolver(2, 1).count(new int[] {0b1000, 0b0011}), 0);
+  }
+
+  // tests that generated levels have one solution, and are scrambled
+  // spanning trees of the board with one station
+  void testLevel(Tester t) {
+    UniqueLevels generator = new UniqueLevels(12, 9, new Random(3));
+    for (int round = 0; round < 10; round++) {
+      LightEmAll game = generator.level();
+      t.checkExpect(game.stations.size(), 1);
+      t.checkExpect(new BoardSolver(12, 9).count(masks(game)), 1);
+      int wires = 0;
+      for (int mask : masks(game)) {
+        wires += Integer.bitCount(mask);
+      }
+      t.checkExpect(wires, 2 * (12 * 9 - 1));
+    }
+    t.checkExpect(generator.levels, 10);
+  }
+
+  // tests that a repair only redraws the window it is given
+  void testRedraw(Tester t) {
+    UniqueLevels generator = new UniqueLevels(10, 10, new Random(4));
+    int[] masks = generator.randomTree();
+    int[] before = masks.clone();
+    generator.ambiguous[0] = 55;
+    generator.redraw(masks, 1, 1);
+    int wires = 0;
+    for (int index = 0; index < 100; index++) {
+      wires += Integer.bitCount(masks[index]);
+      int row = index / 10;
+      int col = index % 10;
+      if (row < 4 || 6 < row || col < 4 || 6 < col) {
+        t.checkExpect(masks[index], before[index]);
+      }
+    }
+    t.checkExpect(wires, 2 * 99);
+    t.checkExpect(generator.longestPath(masks, 0) < 100, true);
+  }
+}
@@ -0,0 +1,630 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// one published version of a board. its tiles are split into square chunks of
+// VersionedBoard.CHUNK_SIDE tiles a side, and its chunks into pages of
+// VersionedBoard.PAGE_CHUNKS, and every chunk or page that didn't change since
+// the version before is shared with it rather than copied. nothing in a
+// version changes once it is published, so any thread may read it. the one
+// exception is a bitset of the stations, built by the first reader to look one up
+class BoardVersion implements TileSource {
+  long version;
+  int width;
+  int height;
+  int radius;
+  int moves;
+  boolean won;
+  // how many chunks there are across the board
+  int chunksPerRow;
+  // every tile, packed by pack(), by page, then by chunk, then in row-major
+  // order within the chunk
+  int[][][] tiles;
+  // the tile index of every station
+  int[] stations;
+  // how many tiles are powered
+  int powered;
+  // a bit for every tile, set where there is a station, or null until a reader
+  // needs it. readers that race to build it build the same bits
+  volatile long[] stationBits;
+
+  BoardVersion(LightEmAll game, long version, int[][][] tiles, int[] stations, int powered,
+               long[] stationBits) {
+    this.version = version;
+    this.width = game.width;
+    this.height = game.height;
+    this.radius = game.radius;
+    this.moves = game.moves;
+    this.chunksPerRow = (game.width + VersionedBoard.CHUNK_SIDE - 1) >> VersionedBoard.CHUNK_BITS;
+    this.tiles = tiles;
+    this.stations = stations;
+    this.powered = powered;
+    this.won = powered == width * height;
+    this.stationBits = stationBits;
+  }
+
+  // a tile's wire mask and distance to the nearest station (or -1) in one int,
+  // so that a chunk is a single array
+  static int pack(int mask, int dist) {
+    return (dist + 1) << 4 | mask;
+  }
+
+  // the chunk the tile at the given position is in
+  int chunkOf(int row, int col) {
+    return (row >> VersionedBoard.CHUNK_BITS) * chunksPerRow + (col >> VersionedBoard.CHUNK_BITS);
+  }
+
+  // where in its chunk the tile at the given position is
+  static int offsetOf(int row, int col) {
+    int side = VersionedBoard.CHUNK_SIDE - 1;
+    return ((row & side) << VersionedBoard.CHUNK_BITS) | (col & side);
+  }
+
+  // the packed tiles of the given chunk
+  int[] chunk(int chunk) {
+    return tiles[chunk >> VersionedBoard.PAGE_BITS][chunk & (VersionedBoard.PAGE_CHUNKS - 1)];
+  }
+
+  // the packed tile at the given position
+  int tile(int row, int col) {
+    return chunk(chunkOf(row, col))[offsetOf(row, col)];
+  }
+
+  // the wire mask of the tile at the given index
+  int mask(int index) {
+    return tile(index / width, index % width) & 15;
+  }
+
+  // the distance from the tile at the given index to its nearest station,
+  // or -1 if it isn't powered
+  int dist(int index) {
+    return (tile(index / width, index % width) >> 4) - 1;
+  }
+
+  // is there a station on the tile at the given index?
+  boolean isStation(int index) {
+    return (stationBits()[index >> 6] & (1L << (index & 63))) != 0;
+  }
+
+  // the bitset of the stations, building it if no reader has yet
+  long[] stationBits() {
+    long[] bits = stationBits;
+    if (bits == null) {
+      bits = new long[(width * height + 63) >> 6];
+      for (int station : stations) {
+        bits[station >> 6] |= 1L << (station & 63);
+      }
+      stationBits = bits;
+    }
+    return bits;
+  }
+
+  // how many chunks of this version aren't shared with the given older one
+  int changedSince(BoardVersion older) {
+    int changed = 0;
+    for (int page = 0; page < tiles.length; page++) {
+      if (tiles[page] != older.tiles[page]) {
+        for (int slot = 0; slot < tiles[page].length; slot++) {
+          if (tiles[page][slot] != older.tiles[page][slot]) {
+            changed += 1;
+          }
+        }
+      }
+    }
+    return changed;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  public int mask(int row, int col) {
+    return tile(row, col) & 15;
+  }
+
+  public boolean station(int row, int col) {
+    return isStation(row * width + col);
+  }
+
+  public int red(int row, int col) {
+    return LightEmAll.gradientRed((tile(row, col) >> 4) - 1, radius);
+  }
+}
+
+// publishes versions of a game's board for other threads (analytics, hints,
+// exports) to read while the game keeps changing, without any locks. the
+// thread applying input notes which tiles each batch changed, and publishes
+// a new version only once a reader has asked for one since the last: at the
+// end of its next batch, or on its next tick if no batch comes. so a board
+// nobody is reading costs the writer next to nothing, and a tile turned many
+// times between two reads is copied once. a version copies only the chunks
+// that changed since the one before and the pages they are in, sharing the
+// rest with it, and is swapped in with a single volatile write. the chunks
+// are small and square so that the few tiles a turn changes tend to share
+// one. readers can keep reading a version for as long as they like: it never
+// shows half a batch, let alone half a rotation
+class VersionedBoard {
+  static final int CHUNK_BITS = 4;
+  static final int CHUNK_SIDE = 1 << CHUNK_BITS;
+  static final int PAGE_BITS = 6;
+  static final int PAGE_CHUNKS = 1 << PAGE_BITS;
+  volatile BoardVersion latest;
+  // whether a reader asked for a version since the last one was published
+  volatile boolean requested;
+  int width;
+  int chunksPerRow;
+  // the tiles that may have changed since the last version, each listed once:
+  // a tile is listed if its stamp is the current epoch. if pendingAll is set,
+  // any tile may have, and the list is not kept
+  int[] pending;
+  int pendingCount;
+  int[] pendingStamp;
+  int pendingEpoch;
+  boolean pendingAll;
+  // the chunks and pages copied for the version being published, by the
+  // stamp they were copied at
+  int[] chunkStamp;
+  int[] pageStamp;
+  int stamp;
+  // how many chunks have been copied, over all versions
+  long copied;
+
+  // start publishing versions of the given game, whose power fields must be up to date
+  VersionedBoard(LightEmAll game) {
+    this.width = game.width;
+    this.chunksPerRow = (game.width + CHUNK_SIDE - 1) >> CHUNK_BITS;
+    int chunks = chunksPerRow * ((game.height + CHUNK_SIDE - 1) >> CHUNK_BITS);
+    this.chunkStamp = new int[chunks];
+    this.pageStamp = new int[(chunks + PAGE_CHUNKS - 1) >> PAGE_BITS];
+    this.pending = new int[game.nodes.size()];
+    this.pendingStamp = new int[game.nodes.size()];
+    this.pendingEpoch = 1;
+    this.pendingAll = true;
+    publishPending(game);
+  }
+
+  // the latest version, which may be read from any thread. it may be a few
+  // batches behind the game; asking for it has the writer publish the changes
+  // since at the end of its next batch or tick
+  BoardVersion latest() {
+    if (!requested) {
+      requested = true;
+    }
+    return latest;
+  }
+
+  // note every tile whose wires or power a batch of input may have changed,
+  // publishing them if a reader is waiting
+  void publish(LightEmAll game, int[] changed, int count) {
+    if (!pendingAll) {
+      for (int i = 0; i < count; i++) {
+        int index = changed[i];
+        if (pendingStamp[index] != pendingEpoch) {
+          pendingStamp[index] = pendingEpoch;
+          pending[pendingCount++] = index;
+        }
+      }
+    }
+    serve(game);
+  }
+
+  // note a batch of input that may have changed any tile,
+  // publishing it if a reader is waiting
+  void publishAll(LightEmAll game) {
+    pendingAll = true;
+    serve(game);
+  }
+
+  // publish what changed since the last version if a reader asked for it
+  void serve(LightEmAll game) {
+    if (requested) {
+      requested = false;
+      publishPending(game);
+    }
+  }
+
+  // publish a version with every change noted since the last one. most of the
+  // noted tiles come out the same, so a chunk is only copied from the latest
+  // version, along with its page and the root, the first time one of its tiles
+  // actually differs, and nothing is published at all if no tile, station or
+  // move count did
+  void publishPending(LightEmAll game) {
+    if (pendingAll) {
+      publishEverything(game);
+    }
+    else {
+      publishTiles(game);
+    }
+    pendingAll = false;
+    pendingCount = 0;
+    pendingEpoch += 1;
+  }
+
+  // publish a version that copies the noted tiles
+  void publishTiles(LightEmAll game) {
+    BoardVersion before = latest;
+    int[] stations = before.stations;
+    for (int s = 0; s < stations.length; s++) {
+      if (game.indexOf(game.stations.get(s)) != stations[s]) {
+        stations = ChangeFeed.stationTiles(game);
+        break;
+      }
+    }
+    stamp += 1;
+    int[][][] tiles = before.tiles;
+    int powered = before.powered;
+    for (int i = 0; i < pendingCount; i++) {
+      int index = pending[i];
+      int row = index / width;
+      int col = index % width;
+      int chunk = (row >> CHUNK_BITS) * chunksPerRow + (col >> CHUNK_BITS);
+      int page = chunk >> PAGE_BITS;
+      int slot = chunk & (PAGE_CHUNKS - 1);
+      int offset = BoardVersion.offsetOf(row, col);
+      int old = tiles[page][slot][offset];
+      int packed = BoardVersion.pack(game.nodes.get(index).mask(), game.stationDist[index]);
+      if (old == packed) {
+        continue;
+      }
+      if (chunkStamp[chunk] != stamp) {
+        chunkStamp[chunk] = stamp;
+        if (tiles == before.tiles) {
+          tiles = tiles.clone();
+        }
+        if (pageStamp[page] != stamp) {
+          pageStamp[page] = stamp;
+          tiles[page] = tiles[page].clone();
+        }
+        tiles[page][slot] = tiles[page][slot].clone();
+        copied += 1;
+      }
+      tiles[page][slot][offset] = packed;
+      // a distance of -1 packs to nothing above the mask
+      powered += (packed >> 4 == 0 ? 0 : 1) - (old >> 4 == 0 ? 0 : 1);
+    }
+    if (tiles == before.tiles && stations == before.stations && game.moves == before.moves) {
+      return;
+    }
+    latest = new BoardVersion(game, before.version + 1, tiles, stations, powered,
+        stations == before.stations ? before.stationBits : null);
+  }
+
+  // publish a version of the game that copies every tile, sharing nothing
+  void publishEverything(LightEmAll game) {
+    int chunks = chunkStamp.length;
+    int[][][] tiles = new int[pageStamp.length][][];
+    for (int page = 0; page < tiles.length; page++) {
+      tiles[page] = new int[Math.min(PAGE_CHUNKS, chunks - (page << PAGE_BITS))]
+          [CHUNK_SIDE * CHUNK_SIDE];
+    }
+    int powered = 0;
+    for (int index = 0; index < game.nodes.size(); index++) {
+      int row = index / width;
+      int col = index % width;
+      int chunk = (row >> CHUNK_BITS) * chunksPerRow + (col >> CHUNK_BITS);
+      tiles[chunk >> PAGE_BITS][chunk & (PAGE_CHUNKS - 1)][BoardVersion.offsetOf(row, col)] =
+          BoardVersion.pack(game.nodes.get(index).mask(), game.stationDist[index]);
+      if (game.stationDist[index] != -1) {
+        powered += 1;
+      }
+    }
+    copied += chunks;
+    long version = latest == null ? 0 : latest.version + 1;
+    latest = new BoardVersion(game, version, tiles, ChangeFeed.stationTiles(game), powered,
+        null);
+  }
+
+  // usage: VersionedBoard [size] [turns] [turns per batch] [readers]
+  // turns random tiles of a scrambled size x size board through the input
+  // queue, in batches of the given size, without versions, with versions
+  // that nobody reads, and then with versions that the given number of
+  // threads read as fast as they can, so that one is published every batch
+  public static void main(String[] args) throws InterruptedException {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int turns = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    int batch = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    int readerCount = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+    TileSource source = new GeneratedTileSource(size, size, 1, false);
+    int[] masks = new int[size * size];
+    for (int index = 0; index < masks.length; index++) {
+      masks[index] = source.mask(index / size, index % size);
+    }
+    for (int round = 0; round < 3; round++) {
+      LightEmAll plain = new LightEmAll(size, size, masks, new int[] {0}, 0, size, 0);
+      plain.processInput();
+      double plainRate = turnsPerSecond(plain, turns, batch);
+      LightEmAll versioned = new LightEmAll(size, size, masks, new int[] {0}, 0, size, 0);
+      versioned.startVersioning();
+      double versionedRate = turnsPerSecond(versioned, turns, batch);
+      long copied = versioned.versions.copied;
+
+      VersionedBoard versions = versioned.versions;
+      AtomicBoolean done = new AtomicBoolean();
+      long[] reads = new long[readerCount];
+      long[] wires = new long[readerCount];
+      Thread[] readers = new Thread[readerCount];
+      for (int r = 0; r < readerCount; r++) {
+        int reader = r;
+        readers[r] = new Thread(() -> {
+          while (!done.get()) {
+            // count the wires of a whole chunk of the latest version
+            BoardVersion version = versions.latest();
+            int chunk = (int) (reads[reader] % (version.chunksPerRow * version.chunksPerRow));
+            for (int tile : version.chunk(chunk)) {
+              wires[reader] += Integer.bitCount(tile & 15);
+            }
+            reads[reader] += 1;
+          }
+        });
+        readers[r].setDaemon(true);
+        readers[r].start();
+      }
+      double readRate = turnsPerSecond(versioned, turns, batch);
+      done.set(true);
+      long totalReads = 0;
+      for (int r = 0; r < readerCount; r++) {
+        readers[r].join();
+        totalReads += reads[r];
+      }
+      System.out.printf("%dx%d, %d turns a batch: %.0f turns/s plain, %.0f turns/s"
+          + " unread, %.0f turns/s with %d readers (%.2f chunks copied a turn,"
+          + " %d chunk reads)%n", size, size, batch, plainRate, versionedRate, readRate,
+          readerCount, (double) (versions.copied - copied) / turns, totalReads);
+    }
+  }
+
+  // how many random tiles of the given game can be turned a second,
+  // applying them in batches of the given size
+  static double turnsPerSecond(LightEmAll game, int turns, int batch) {
+    Random rand = new Random(7);
+    // don't charge this run for collecting the boards of the runs before it
+    System.gc();
+    long start = System.nanoTime();
+    for (int turn = 0; turn < turns; turn++) {
+      game.input.rotate(rand.nextInt(game.nodes.size()));
+      if ((turn + 1) % batch == 0) {
+        game.processInput();
+      }
+    }
+    game.processInput();
+    return turns / ((System.nanoTime() - start) / 1e9);
+  }
+}
+
+// examples for versioned boards
+class ExamplesVersionedBoard {
+  // does the given version match the given game?
+  boolean matches(BoardVersion version, LightEmAll game) {
+    for (int index = 0; index < game.nodes.size(); index++) {
+      if (version.mask(index) != game.nodes.get(index).mask()
+          || version.dist(index) != game.stationDist[index]) {
+        return false;
+      }
+    }
+    return version.moves == game.moves
+        && Arrays.equals(version.stations, ChangeFeed.stationTiles(game))
+        && version.won == game.allPowered();
+  }
+
+  // the version a reader sees once it has asked for one and the game has had
+  // a tick to publish it
+  BoardVersion fresh(LightEmAll game) {
+    game.versions.latest();
+    game.processInput();
+    return game.versions.latest;
+  }
+
+  // are the distances of the given version the ones its own wires and
+  // stations give, so that it is not part way through a change?
+  boolean consistent(BoardVersion version) {
+    int tiles = version.width * version.height;
+    int[] dist = new int[tiles];
+    Arrays.fill(dist, -1);
+    int[] queue = new int[tiles];
+    int tail = 0;
+    for (int station : version.stations) {
+      dist[station] = 0;
+      queue[tail++] = station;
+    }
+    for (int head = 0; head < tail; head++) {
+      int index = queue[head];
+      int row = index / version.width;
+      int col = index % version.width;
+      int[] next = {row == 0 ? -1 : index - version.width,
+          row == version.height - 1 ? -1 : index + version.width,
+          col == 0 ? -1 : index - 1, col == version.width - 1 ? -1 : index + 1};
+      for (int dir = 0; dir < 4; dir++) {
+        if (next[dir] != -1 && dist[next[dir]] == -1
+            && (version.mask(index) & (1 << dir)) != 0
+            && (version.mask(next[dir]) & (1 << GamePiece.opposite(dir))) != 0) {
+          dist[next[dir]] = dist[index] + 1;
+          queue[tail++] = next[dir];
+        }
+      }
+    }
+    for (int index = 0; index < tiles; index++) {
+      if (dist[index] != version.dist(index)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // tests that versions copy only the chunks a batch touched, and that
+  // older versions don't change
+  void testPublish(Tester t) {
+    LightEmAll game = new LightEmAll(200, 130, 2, new Random(4));
+    game.startVersioning();
+    BoardVersion first = game.versions.latest();
+    // 13 chunks across and 9 down, in two pages
+    t.checkExpect(first.chunksPerRow, 13);
+    t.checkExpect(first.tiles.length, 2);
+    t.checkExpect(first.tiles[1].length, 117 - VersionedBoard.PAGE_CHUNKS);
+    t.checkExpect(first.chunkOf(129, 199), 116);
+    t.checkExpect(matches(first, game), true);
+    int[] before = new int[26000];
+    for (int index = 0; index < before.length; index++) {
+      before[index] = first.mask(index);
+    }
+
+    game.onMouseClicked(new Posn(25, 25), "LeftButton");
+    game.onTick();
+    BoardVersion second = fresh(game);
+    t.checkExpect(second.version, first.version + 1);
+    t.checkExpect(matches(second, game), true);
+    t.checkExpect(second.mask(0) == before[0], false);
+    boolean[] touched = new boolean[117];
+    for (int index = 0; index < before.length; index++) {
+      if (game.regionStamp[index] == game.regionEpoch) {
+        touched[first.chunkOf(index / 200, index % 200)] = true;
+      }
+    }
+    for (int chunk = 0; chunk < 117; chunk++) {
+      t.checkExpect(second.chunk(chunk) == first.chunk(chunk), !touched[chunk]);
+    }
+    // the first page changed and the second didn't
+    t.checkExpect(second.tiles[0] == first.tiles[0], false);
+    t.checkExpect(second.tiles[1] == first.tiles[1], true);
+    for (int index = 0; index < before.length; index++) {
+      t.checkExpect(first.mask(index), before[index]);
+    }
+
+    // nothing changed, so nothing is published
+    game.onTick();
+    t.checkExpect(fresh(game) == second, true);
+    // a full update copies everything
+    game.rotateTile(199, 129);
+    game.onTick();
+    t.checkExpect(fresh(game).changedSince(second), 117);
+    t.checkExpect(matches(fresh(game), game), true);
+  }
+
+  // tests exporting a version, as a tile source, like the game itself
+  void testTileSource(Tester t) {
+    LightEmAll game = new LightEmAll(20, 17, 2, new Random(8));
+    game.startVersioning();
+    TileSource version = game.versions.latest();
+    TileSource tiles = new GameTileSource(game);
+    for (int row = 0; row < 17; row++) {
+      for (int col = 0; col < 20; col++) {
+        t.checkExpect(version.mask(row, col), tiles.mask(row, col));
+        t.checkExpect(version.station(row, col), tiles.station(row, col));
+        t.checkExpect(version.red(row, col), tiles.red(row, col));
+      }
+    }
+  }
+
+  // tests that a batch that leaves every tile as it was publishes nothing,
+  // and that one that changes a tile copies just its chunk
+  void testUnchanged(Tester t) {
+    LightEmAll game = new LightEmAll(40, 40, 2, new Random(4));
+    game.startVersioning();
+    BoardVersion before = game.versions.latest();
+    int[] all = new int[1600];
+    for (int index = 0; index < all.length; index++) {
+      all[index] = index;
+    }
+    game.versions.latest();
+    game.versions.publish(game, all, all.length);
+    t.checkExpect(game.versions.latest() == before, true);
+
+    game.moves += 1;
+    game.versions.publish(game, all, all.length);
+    BoardVersion moved = game.versions.latest();
+    t.checkExpect(moved.version, before.version + 1);
+    t.checkExpect(moved.tiles == before.tiles, true);
+    t.checkExpect(moved.stationBits == before.stationBits, true);
+
+    game.nodes.get(0).rotate();
+    game.versions.publish(game, all, all.length);
+    t.checkExpect(game.versions.latest().changedSince(moved), 1);
+    t.checkExpect(matches(game.versions.latest(), game), true);
+  }
+
+  // tests versions of a game whose power spreads over several ticks
+  void testWave(Tester t) {
+    LightEmAll game = new LightEmAll(8, 8, 2, new Random(5));
+    game.startVersioning();
+    game.useWavefront(4);
+    for (int tick = 0; tick < 40; tick++) {
+      if (tick % 7 == 0) {
+        game.onMouseClicked(new Posn(tick * 9 % 400, tick * 13 % 400), "LeftButton");
+      }
+      game.onTick();
+      t.checkExpect(matches(fresh(game), game), true);
+    }
+  }
+
+  // tests that batches nobody asks about are only noted, and published
+  // together, copying each chunk once, when a reader does ask
+  void testOnRequest(Tester t) {
+    LightEmAll game = new LightEmAll(40, 40, 1, new Random(2));
+    game.startVersioning();
+    BoardVersion before = game.versions.latest;
+    long copied = game.versions.copied;
+    for (int turn = 0; turn < 3; turn++) {
+      game.onMouseClicked(new Posn(5, 5), "LeftButton");
+      game.onTick();
+    }
+    // nothing is published while no reader asks
+    t.checkExpect(game.versions.latest == before, true);
+    t.checkExpect(game.versions.copied, copied);
+    // the reader sees the version as of its request straight away
+    t.checkExpect(game.versions.latest() == before, true);
+    game.onMouseClicked(new Posn(5, 5), "LeftButton");
+    game.onTick();
+    BoardVersion after = game.versions.latest;
+    t.checkExpect(after.version, before.version + 1);
+    t.checkExpect(matches(after, game), true);
+    t.checkExpect(after.changedSince(before), (int) (game.versions.copied - copied));
+    // four turns of one tile leave its wires as they were
+    t.checkExpect(after.mask(0), before.mask(0));
+    t.checkExpect(game.versions.requested, false);
+  }
+
+  // tests that a thread reading versions while the game changes
+  // only ever sees whole batches
+  void testReaders(Tester t) throws InterruptedException {
+    LightEmAll game = new LightEmAll(12, 12, 3, new Random(6));
+    game.startVersioning();
+    AtomicBoolean done = new AtomicBoolean();
+    int[] seen = new int[2];
+    Thread reader = new Thread(() -> {
+      long last = -1;
+      while (!done.get()) {
+        BoardVersion version = game.versions.latest();
+        if (version.version != last) {
+          last = version.version;
+          seen[0] += 1;
+          if (!consistent(version)) {
+            seen[1] += 1;
+          }
+        }
+        Thread.yield();
+      }
+    });
+    reader.start();
+    Random rand = new Random(6);
+    for (int batch = 0; batch < 300; batch++) {
+      for (int turn = rand.nextInt(4); 0 <= turn; turn--) {
+        game.onMouseClicked(new Posn(rand.nextInt(600), rand.nextInt(600)), "LeftButton");
+      }
+      if (rand.nextInt(4) == 0) {
+        game.onKeyEvent(new String[] {"up", "down", "left", "right", "2"}[rand.nextInt(5)]);
+      }
+      game.onTick();
+      Thread.yield();
+    }
+    done.set(true);
+    reader.join();
+    t.checkExpect(seen[0] > 0, true);
+    t.checkExpect(seen[1], 0);
+    t.checkExpect(consistent(game.versions.latest()), true);
+  }
+}